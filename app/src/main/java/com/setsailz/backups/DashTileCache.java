@@ -0,0 +1,75 @@
+package com.setsailz.backups;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.support.v7.widget.LinearLayoutManager;
+import android.util.LruCache;
+
+import java.util.Arrays;
+
+/**
+ * 虚线分割线的贴图缓存
+ * 每张贴图只画一个虚线周期，配合BitmapShader的REPEAT模式平铺成整条虚线，
+ * 避免在硬件加速下使用DashPathEffect。颜色、粗细、虚线样式和方向都相同的分割线共用同一张贴图
+ */
+final class DashTileCache {
+    /**
+     * 最多缓存的贴图数量，单张贴图只有一个周期大小，占用很小
+     */
+    private static final int MAX_TILE_COUNT = 16;
+
+    private static final LruCache<String, Bitmap> sTiles = new LruCache<>(MAX_TILE_COUNT);
+
+    private DashTileCache() {
+    }
+
+    /**
+     * 取得虚线贴图，没有则创建并缓存
+     *
+     * @param color       分割线颜色
+     * @param thickness   分割线粗细
+     * @param intervals   虚线样式，偶数位为实线长度，奇数位为间隔长度
+     * @param orientation 列表方向，纵向列表的分割线沿X轴平铺，横向列表的分割线沿Y轴平铺
+     */
+    static Bitmap obtain(int color, int thickness, float[] intervals, int orientation) {
+        final String key = color + "|" + thickness + "|" + orientation + "|" + Arrays.toString(intervals);
+        Bitmap tile = sTiles.get(key);
+        if (tile == null) {
+            tile = createTile(color, Math.max(thickness, 1), intervals, orientation);
+            sTiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    private static Bitmap createTile(int color, int thickness, float[] intervals, int orientation) {
+        float period = 0;
+        for (float interval : intervals) {
+            period += interval;
+        }
+        final int length = Math.max(Math.round(period), 1);
+        final boolean alongX = orientation == LinearLayoutManager.VERTICAL;
+        final Bitmap tile = alongX
+                ? Bitmap.createBitmap(length, thickness, Bitmap.Config.ARGB_8888)
+                : Bitmap.createBitmap(thickness, length, Bitmap.Config.ARGB_8888);
+
+        final Canvas canvas = new Canvas(tile);
+        final Paint paint = new Paint();
+        paint.setColor(color);
+        paint.setStyle(Paint.Style.FILL);
+        float start = 0;
+        for (int i = 0; i < intervals.length; i++) {
+            final float end = start + intervals[i];
+            // 偶数位是实线段
+            if (i % 2 == 0) {
+                if (alongX) {
+                    canvas.drawRect(start, 0, end, thickness, paint);
+                } else {
+                    canvas.drawRect(0, start, thickness, end, paint);
+                }
+            }
+            start = end;
+        }
+        return tile;
+    }
+}
@@ -1,21 +1,49 @@
 package com.setsailz.backups;
 
 import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
-import android.graphics.DashPathEffect;
+import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.PathEffect;
 import android.graphics.Rect;
+import android.graphics.Shader;
 import android.support.annotation.ColorRes;
-import android.support.v4.content.ContextCompat;
+import android.support.v4.content.res.ResourcesCompat;
+import android.support.v7.widget.GridLayoutManager;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.StaggeredGridLayoutManager;
+import android.util.SparseArray;
 import android.view.View;
 
+import com.setsailz.backups.widgets.CompositeItemDecoration;
+import com.setsailz.backups.widgets.DecorationChildTable;
+import com.setsailz.backups.widgets.FrameQualityMonitor;
+import com.setsailz.backups.widgets.PinnedHeaderDecoration;
+
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by Setsail on 2017/3/22.
  */
-public class DefaultRecyclerViewDivider extends RecyclerView.ItemDecoration {
+public class DefaultRecyclerViewDivider extends RecyclerView.ItemDecoration implements CompositeItemDecoration.TableDecoration {
+    private static final int LINE_BUFFER_INIT_SIZE = 32 * 4;
+
+    private static final float[] DEFAULT_DASH_INTERVALS = new float[]{15, 15};
+
+    /**
+     * 规则解析结果：使用默认样式
+     */
+    private static final DividerStyle STYLE_DEFAULT = new DividerStyle();
+
+    /**
+     * 规则解析结果：不显示分割线
+     */
+    private static final DividerStyle STYLE_NONE = new DividerStyle();
+
     /*
       * RecyclerView的布局方向，默认先赋值
       * 为纵向布局
@@ -25,7 +53,7 @@ public class DefaultRecyclerViewDivider extends RecyclerView.ItemDecoration {
     private int mOrientation = LinearLayoutManager.VERTICAL;
 
     /**
-     * 分割线的颜色
+     * 分割线的颜色，设置时已经按主题解析
      */
     private int mColor;
 
@@ -49,6 +77,38 @@ public class DefaultRecyclerViewDivider extends RecyclerView.ItemDecoration {
      */
     private boolean mIsDashLine = false;
 
+    /**
+     * 虚线样式，偶数位为实线长度，奇数位为间隔长度，默认为{15, 15}
+     */
+    private float[] mDashIntervals = DEFAULT_DASH_INTERVALS;
+
+    /**
+     * 虚线贴图的平铺shader，虚线模式下设置给画笔
+     */
+    private BitmapShader mDashShader;
+
+    /**
+     * 调整虚线起点用的矩阵，让虚线从分割线的起点开始，和DashPathEffect的效果一致
+     */
+    private final Matrix mDashMatrix = new Matrix();
+
+    private int mDashPhase = Integer.MIN_VALUE;
+
+    /**
+     * build时解析出的分割线颜色，虚线降级为实线时使用
+     */
+    private int mResolvedColor;
+
+    /**
+     * 掉帧时降低绘制质量，为null时始终使用最高质量
+     */
+    private FrameQualityMonitor mQualityMonitor;
+
+    /**
+     * 画笔当前对应的绘制质量
+     */
+    private int mQualityLevel = FrameQualityMonitor.QUALITY_FULL;
+
     /**
      * 绘制item分割线的画笔，和设置其属性
      * 来绘制个性分割线
@@ -65,22 +125,189 @@ public class DefaultRecyclerViewDivider extends RecyclerView.ItemDecoration {
      */
     private boolean enableFooterDivider;
 
-    private Context mContext;
+    /**
+     * 是否合批绘制：把所有可见分割线收集到同一个float缓冲区，一次drawLines画完
+     */
+    private boolean mBatchDraw;
+
+    /**
+     * 合批绘制用的画笔，线宽等于分割线size，端点不延伸，和drawRect输出的像素一致
+     */
+    private Paint mLinePaint;
+
+    /**
+     * 合批绘制复用的坐标缓冲区，每条线4个float，只在可见item数变多时扩容
+     */
+    private float[] mLineBuffer = new float[LINE_BUFFER_INIT_SIZE];
+
+    /**
+     * 是否使用间隔模式：只在getItemOffsets里留出间隔，在所有item下面画一个矩形，
+     * 由item之间露出的部分充当分割线，不再逐条绘制
+     */
+    private boolean mGapMode;
+
+    /**
+     * 本帧是否已经在onDraw里画了间隔模式的底色，是则onDrawOver不再逐条绘制
+     */
+    private boolean mGapDrawn;
+
+    /**
+     * 是否跳过透明或者正在执行移除动画的item
+     */
+    private boolean mSkipInvisibleChildren;
+
+    /**
+     * 每帧复用的画布裁剪区域，完全在裁剪区域外的分割线不绘制
+     */
+    private final Rect mClipBounds = new Rect();
+
+    /**
+     * 单独使用时用来取得吸顶header盖住的范围，在{@link CompositeItemDecoration}中时从child表取得
+     */
+    private PinnedHeaderDecoration mPinnedHeader;
+
+    /**
+     * 单独使用（不在{@link CompositeItemDecoration}中）时自己遍历child用的表
+     */
+    private final DecorationChildTable mChildTable = new DecorationChildTable();
+
+    /**
+     * 网格模式使用的实线画笔，网格的行列分割线方向不同，不使用虚线
+     */
+    private Paint mGridPaint;
+
+    /**
+     * 网格模式下每个position的偏移缓存
+     */
+    private final SpanOffsetCache mSpanOffsets = new SpanOffsetCache();
+
+    /**
+     * 网格模式绘制时复用的item边界
+     */
+    private final Rect mDecoratedBounds = new Rect();
+
+    private RecyclerView.Adapter mAdapter;
+
+    /**
+     * 按view type指定的分割线样式
+     */
+    private final SparseArray<DividerStyle> mViewTypeStyles = new SparseArray<>();
+
+    /**
+     * 按position条件指定的分割线样式，按添加顺序匹配，优先于view type规则
+     */
+    private final List<PositionRule> mPositionRules = new ArrayList<>();
+
+    /**
+     * 每个adapter position解析出的样式缓存，和item数量等长，滚动到新的position不会分配内存。
+     * adapter局部变化时只清除或平移受影响的position，payload刷新不会清空整个缓存
+     */
+    private final PositionStyleCache<DividerStyle> mResolvedStyles = new PositionStyleCache<>();
+
+    private final RecyclerView.AdapterDataObserver mAdapterDataObserver = new RecyclerView.AdapterDataObserver() {
+        @Override
+        public void onChanged() {
+            onAdapterDataChanged();
+        }
+
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount) {
+            onAdapterRangeChanged(positionStart, positionStart + itemCount, 0);
+        }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            onAdapterRangeChanged(positionStart, positionStart, itemCount);
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            onAdapterRangeChanged(positionStart, positionStart + itemCount, -itemCount);
+        }
+
+        @Override
+        public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+            // 两个位置之间的item都平移了一位
+            onAdapterRangeChanged(Math.min(fromPosition, toPosition), Math.max(fromPosition, toPosition) + itemCount, 0);
+        }
+    };
+
+    /**
+     * 只保存Resources和主题，不持有Activity。颜色在设置时按构造时的主题解析一次，之后只保存颜色值
+     */
+    private final Resources mResources;
+    private final Resources.Theme mTheme;
+
+    /**
+     * 注册了adapter监听时所在的RecyclerView，从窗口移除时解除绑定
+     */
+    private RecyclerView mParent;
+
+    private final View.OnAttachStateChangeListener mAttachStateListener = new View.OnAttachStateChangeListener() {
+        @Override
+        public void onViewAttachedToWindow(View v) {
+        }
+
+        @Override
+        public void onViewDetachedFromWindow(View v) {
+            release();
+        }
+    };
 
     public DefaultRecyclerViewDivider(Context context) {
-        mContext = context;
+        mResources = context.getResources();
+        mTheme = context.getTheme();
+        LeakWatcher.watchOwned(this, context);
     }
 
     public DefaultRecyclerViewDivider build() {
+        final int color = mColor;
+        mResolvedColor = color;
+        mQualityLevel = FrameQualityMonitor.QUALITY_FULL;
         mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-        mPaint.setColor(ContextCompat.getColor(mContext, mColor));
+        mPaint.setColor(color);
          /*设置填充*/
         mPaint.setStyle(Paint.Style.FILL_AND_STROKE);
+        mGridPaint = new Paint(mPaint);
+        mGridPaint.setStyle(Paint.Style.FILL);
+        mSpanOffsets.clear();
+        mResolvedStyles.clear();
+        for (int i = 0; i < mViewTypeStyles.size(); i++) {
+            buildStyle(mViewTypeStyles.valueAt(i), color);
+        }
+        for (PositionRule rule : mPositionRules) {
+            buildStyle(rule.style, color);
+        }
+        mDashShader = null;
+        mDashPhase = Integer.MIN_VALUE;
         if (mIsDashLine) {
-            mPaint.setStrokeWidth(mItemSize);
-            PathEffect effects = new DashPathEffect(new float[]{15, 15}, 0);
-            mPaint.setPathEffect(effects);
+            /*
+             * 不用DashPathEffect，它在硬件加速下每次drawRect都要重新三角化。
+             * 改为预先画好一个周期的贴图，用REPEAT的BitmapShader平铺，
+             * 颜色已经画在贴图里，画笔只保留透明度为不透明
+             */
+            mDashShader = new BitmapShader(DashTileCache.obtain(color, mItemSize, mDashIntervals, mOrientation),
+                    Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
+            mPaint.setStyle(Paint.Style.FILL);
+            mPaint.setColor(Color.BLACK);
+            mPaint.setShader(mDashShader);
         }
+        if (mBatchDraw) {
+            mLinePaint = new Paint(mPaint);
+            mLinePaint.setStyle(Paint.Style.STROKE);
+            mLinePaint.setStrokeWidth(mItemSize);
+            mLinePaint.setStrokeCap(Paint.Cap.BUTT);
+        } else {
+            mLinePaint = null;
+        }
+        return this;
+    }
+
+    /**
+     * 开启合批绘制，每帧只发出一次drawLines，适合可见item很多的长列表
+     */
+    public DefaultRecyclerViewDivider enableBatchDraw(boolean enable) {
+        this.mBatchDraw = enable;
         return this;
     }
 
@@ -100,12 +327,12 @@ public class DefaultRecyclerViewDivider extends RecyclerView.ItemDecoration {
     }
 
     public DefaultRecyclerViewDivider setDimenSize(int dimen) {
-        this.mItemSize = (int) mContext.getResources().getDimension(dimen);
+        this.mItemSize = (int) mResources.getDimension(dimen);
         return this;
     }
 
     public DefaultRecyclerViewDivider setColor(@ColorRes int color) {
-        this.mColor = color;
+        this.mColor = ResourcesCompat.getColor(mResources, color, mTheme);
         return this;
     }
 
@@ -132,12 +359,207 @@ public class DefaultRecyclerViewDivider extends RecyclerView.ItemDecoration {
         return this;
     }
 
+    /**
+     * 设置虚线样式，需要在build之前调用
+     *
+     * @param intervals 偶数个大于0的值，偶数位为实线长度，奇数位为间隔长度
+     */
+    public DefaultRecyclerViewDivider setDashPattern(float... intervals) {
+        if (intervals == null || intervals.length < 2 || intervals.length % 2 != 0) {
+            throw new IllegalArgumentException("请传入正确的参数");
+        }
+        for (float interval : intervals) {
+            if (interval <= 0) {
+                throw new IllegalArgumentException("请传入正确的参数");
+            }
+        }
+        this.mDashIntervals = intervals.clone();
+        return this;
+    }
+
+    /**
+     * 开启间隔模式，适合实线、item背景不透明、item之间没有margin的列表，每帧只画一个矩形。
+     * 矩形画在所有item下面，只覆盖分割线左右边距以内、RecyclerView的padding以内的部分，
+     * 边距和padding处露出RecyclerView自身的背景，不修改RecyclerView的背景。
+     * 虚线、网格、按规则指定样式、跳过透明item或者item动画进行中时，自动退回逐条绘制
+     */
+    public DefaultRecyclerViewDivider enableGapMode(boolean enable) {
+        this.mGapMode = enable;
+        return this;
+    }
+
+    /**
+     * 跳过透明度为0或者已被移除、正在执行消失动画的item，不画它们的分割线
+     */
+    public DefaultRecyclerViewDivider enableSkipInvisibleChildren(boolean enable) {
+        this.mSkipInvisibleChildren = enable;
+        return this;
+    }
+
+    /**
+     * 掉帧时按monitor的质量级别降低绘制质量：先关闭抗锯齿，再把虚线改为实线，列表停止滚动后恢复
+     */
+    public DefaultRecyclerViewDivider setFrameQualityMonitor(FrameQualityMonitor monitor) {
+        this.mQualityMonitor = monitor;
+        return this;
+    }
+
+    /**
+     * 不在{@link CompositeItemDecoration}中使用时，指定同一个列表上的吸顶header，
+     * 完全被吸顶header盖住的分割线不再绘制
+     */
+    public DefaultRecyclerViewDivider setPinnedHeaderDecoration(PinnedHeaderDecoration decoration) {
+        this.mPinnedHeader = decoration;
+        return this;
+    }
+
+    /**
+     * 给某种view type的item指定分割线样式，需要在build之前调用。
+     * 保存的是样式的副本，之后再修改传入的对象不会生效，同一个对象也可以传给多个divider
+     *
+     * @param viewType item的view type
+     * @param style    分割线样式，为null则该类item不显示分割线
+     */
+    public DefaultRecyclerViewDivider addViewTypeRule(int viewType, DividerStyle style) {
+        mViewTypeStyles.put(viewType, style != null ? copyStyle(style) : STYLE_NONE);
+        return this;
+    }
+
+    /**
+     * 给满足条件的position指定分割线样式，需要在build之前调用。
+     * 每个position只在第一次用到和adapter数据变化后判断一次，结果会被缓存。
+     * 和{@link #addViewTypeRule(int, DividerStyle)}一样保存的是样式的副本
+     *
+     * @param predicate position条件
+     * @param style     分割线样式，为null则满足条件的item不显示分割线
+     */
+    public DefaultRecyclerViewDivider addPositionRule(PositionPredicate predicate, DividerStyle style) {
+        mPositionRules.add(new PositionRule(predicate, style != null ? copyStyle(style) : STYLE_NONE));
+        return this;
+    }
+
+    @Override
+    public void onDraw(Canvas c, RecyclerView parent, RecyclerView.State state) {
+        updateQualityLevel();
+        final int childCount = parent.getChildCount();
+        mGapDrawn = isGapModeActive(parent) && childCount > 0
+                && drawGapBackground(c, parent, parent.getChildAt(0), parent.getChildAt(childCount - 1));
+    }
+
     @Override
     public void onDrawOver(Canvas c, RecyclerView parent, RecyclerView.State state) {
-        if (mOrientation == LinearLayoutManager.VERTICAL) {
-            drawVertical(c, parent);
+        if (mGapDrawn) {
+            return;
+        }
+        mChildTable.fill(parent);
+        onDrawOver(c, parent, state, mChildTable);
+        mChildTable.clear();
+    }
+
+    @Override
+    public void onDraw(Canvas c, RecyclerView parent, RecyclerView.State state, DecorationChildTable children) {
+        updateQualityLevel();
+        final int childSize = children.size();
+        mGapDrawn = isGapModeActive(parent) && childSize > 0
+                && drawGapBackground(c, parent, children.getView(0), children.getView(childSize - 1));
+    }
+
+    @Override
+    public void onDrawOver(Canvas c, RecyclerView parent, RecyclerView.State state, DecorationChildTable children) {
+        updateQualityLevel();
+        if (mGapDrawn) {
+            return;
+        }
+        if (!c.getClipBounds(mClipBounds)) {
+            // 裁剪区域为空
+            return;
+        }
+        // 吸顶header直接画在item上面，不缩小裁剪区域，被它盖住的部分从裁剪区域里扣掉
+        excludeCoveredArea(children);
+        if (mClipBounds.isEmpty()) {
+            return;
+        }
+        if (hasStyleRules()) {
+            updateAdapter(parent);
+        }
+        drawDividers(c, parent, children, state.getItemCount());
+    }
+
+    /**
+     * 取得本帧被吸顶header盖住的范围，从{@link #mClipBounds}的起始边扣掉，
+     * 范围内的分割线和裁剪区域外的一样不绘制
+     */
+    private void excludeCoveredArea(DecorationChildTable children) {
+        int coveredEnd = children.getCoveredEnd();
+        boolean vertical = children.isCoveredVertical();
+        if (coveredEnd <= 0 && mPinnedHeader != null) {
+            coveredEnd = mPinnedHeader.getPinnedHeaderEnd();
+            vertical = mPinnedHeader.isVerticalLayout();
+        }
+        if (coveredEnd <= 0) {
+            return;
+        }
+        if (vertical) {
+            mClipBounds.top = Math.max(mClipBounds.top, coveredEnd);
+        } else {
+            mClipBounds.left = Math.max(mClipBounds.left, coveredEnd);
+        }
+    }
+
+    /**
+     * 质量级别变化时修改画笔，不重新build。
+     * 分割线都是和坐标轴对齐的矩形，关闭抗锯齿几乎看不出区别
+     */
+    private void updateQualityLevel() {
+        final int level = mQualityMonitor != null ? mQualityMonitor.getQualityLevel() : FrameQualityMonitor.QUALITY_FULL;
+        if (level == mQualityLevel || mPaint == null) {
+            return;
+        }
+        mQualityLevel = level;
+
+        final boolean antiAlias = level == FrameQualityMonitor.QUALITY_FULL;
+        mPaint.setAntiAlias(antiAlias);
+        mGridPaint.setAntiAlias(antiAlias);
+        if (mLinePaint != null) {
+            mLinePaint.setAntiAlias(antiAlias);
+        }
+        for (int i = 0; i < mViewTypeStyles.size(); i++) {
+            setStyleAntiAlias(mViewTypeStyles.valueAt(i), antiAlias);
+        }
+        for (int i = 0; i < mPositionRules.size(); i++) {
+            setStyleAntiAlias(mPositionRules.get(i).style, antiAlias);
+        }
+
+        if (mDashShader != null) {
+            final boolean solid = level >= FrameQualityMonitor.QUALITY_MINIMAL;
+            setDashShader(mPaint, solid);
+            if (mLinePaint != null) {
+                setDashShader(mLinePaint, solid);
+            }
+        }
+    }
+
+    private static void setStyleAntiAlias(DividerStyle style, boolean antiAlias) {
+        if (style.mPaint != null) {
+            style.mPaint.setAntiAlias(antiAlias);
+        }
+    }
+
+    /**
+     * 虚线画笔在贴图和纯色之间切换，贴图里已经带了颜色，所以画笔颜色为黑色
+     */
+    private void setDashShader(Paint paint, boolean solid) {
+        paint.setShader(solid ? null : mDashShader);
+        paint.setColor(solid ? mResolvedColor : Color.BLACK);
+    }
+
+    private void drawDividers(Canvas canvas, RecyclerView parent, DecorationChildTable children, int itemCount) {
+        if (isGridLayout(parent.getLayoutManager())) {
+            drawGrid(canvas, parent, children);
+        } else if (mOrientation == LinearLayoutManager.VERTICAL) {
+            drawVertical(canvas, parent, children, itemCount);
         } else {
-            drawHorizontal(c, parent);
+            drawHorizontal(canvas, parent, children, itemCount);
         }
     }
 
@@ -146,33 +568,50 @@ public class DefaultRecyclerViewDivider extends RecyclerView.ItemDecoration {
      *
      * @param canvas
      * @param parent
+     * @param children
+     * @param itemCount
      */
-    private void drawVertical(Canvas canvas, RecyclerView parent) {
+    private void drawVertical(Canvas canvas, RecyclerView parent, DecorationChildTable children, int itemCount) {
         final int left = parent.getPaddingLeft() + mPaddingLeft;
         final int right = parent.getMeasuredWidth() - parent.getPaddingRight() - mPaddingRight;
-        final int childSize = parent.getChildCount();
-        boolean skipFirst = false;
-        boolean skipLast = false;
-        final RecyclerView.LayoutManager layoutManager = parent.getLayoutManager();
-        if (layoutManager instanceof LinearLayoutManager) {
-            if (((LinearLayoutManager) layoutManager).findFirstVisibleItemPosition() == 0)
-                skipFirst = true;
-            if (((LinearLayoutManager) layoutManager).findLastVisibleItemPosition() + 1 == layoutManager.getItemCount()) {
-                skipLast = true;
-            }
+        final int childSize = children.size();
+        updateDashPhase(left);
+        final boolean batch = mLinePaint != null;
+        if (batch) {
+            ensureLineBufferCapacity(childSize);
         }
+        int lineCount = 0;
+        final float halfSize = mItemSize / 2f;
         for (int i = 0; i < childSize; i++) {
-            final View child = parent.getChildAt(i);
-            if (i == 0 && !enableHeaderDivider && skipFirst) {
+            final View child = children.getView(i);
+            RecyclerView.LayoutParams layoutParams = children.getLayoutParams(i);
+            if (isEdgeDividerHidden(children.getLayoutPosition(i), itemCount)
+                    || isSkippedChild(child, layoutParams)) {
+                continue;
+            }
+            final int top = child.getBottom() + layoutParams.bottomMargin;
+            final DividerStyle style = resolveStyle(parent, children.getAdapterPosition(i), children.getViewType(i));
+            if (style == STYLE_NONE) {
                 continue;
             }
-            if (i == childSize - 1 && !enableFooterDivider && skipLast) {
+            final int dividerSize = style != STYLE_DEFAULT ? style.mSize : mItemSize;
+            if (top >= mClipBounds.bottom || top + dividerSize <= mClipBounds.top) {
                 continue;
             }
-            RecyclerView.LayoutParams layoutParams = (RecyclerView.LayoutParams) child.getLayoutParams();
-            final int top = child.getBottom() + layoutParams.bottomMargin;
-            final int bottom = top + mItemSize;
-            canvas.drawRect(left, top, right, bottom, mPaint);
+            if (style != STYLE_DEFAULT) {
+                canvas.drawRect(left - mPaddingLeft + style.mPaddingLeft, top,
+                        right + mPaddingRight - style.mPaddingRight, top + style.mSize, style.mPaint);
+                continue;
+            }
+            if (batch) {
+                lineCount = appendLine(lineCount, left, top + halfSize, right, top + halfSize);
+            } else {
+                final int bottom = top + mItemSize;
+                canvas.drawRect(left, top, right, bottom, mPaint);
+            }
+        }
+        if (lineCount > 0) {
+            canvas.drawLines(mLineBuffer, 0, lineCount * 4, mLinePaint);
         }
     }
 
@@ -181,18 +620,192 @@ public class DefaultRecyclerViewDivider extends RecyclerView.ItemDecoration {
      *
      * @param canvas
      * @param parent
+     * @param children
+     * @param itemCount
      */
-    private void drawHorizontal(Canvas canvas, RecyclerView parent) {
+    private void drawHorizontal(Canvas canvas, RecyclerView parent, DecorationChildTable children, int itemCount) {
         final int top = parent.getPaddingTop();
         final int bottom = parent.getMeasuredHeight() - parent.getPaddingBottom();
-        final int childSize = parent.getChildCount();
+        final int childSize = children.size();
+        updateDashPhase(top);
+        final boolean batch = mLinePaint != null;
+        if (batch) {
+            ensureLineBufferCapacity(childSize);
+        }
+        int lineCount = 0;
+        final float halfSize = mItemSize / 2f;
         for (int i = 0; i < childSize; i++) {
-            final View child = parent.getChildAt(i);
-            RecyclerView.LayoutParams layoutParams = (RecyclerView.LayoutParams) child.getLayoutParams();
+            final View child = children.getView(i);
+            RecyclerView.LayoutParams layoutParams = children.getLayoutParams(i);
+            if (isEdgeDividerHidden(children.getLayoutPosition(i), itemCount)
+                    || isSkippedChild(child, layoutParams)) {
+                continue;
+            }
             final int left = child.getRight() + layoutParams.rightMargin;
-            final int right = left + mItemSize;
+            final DividerStyle style = resolveStyle(parent, children.getAdapterPosition(i), children.getViewType(i));
+            if (style == STYLE_NONE) {
+                continue;
+            }
+            final int dividerSize = style != STYLE_DEFAULT ? style.mSize : mItemSize;
+            if (left >= mClipBounds.right || left + dividerSize <= mClipBounds.left) {
+                continue;
+            }
+            if (style != STYLE_DEFAULT) {
+                canvas.drawRect(left, top + style.mPaddingLeft, left + style.mSize, bottom - style.mPaddingRight, style.mPaint);
+                continue;
+            }
+            if (batch) {
+                lineCount = appendLine(lineCount, left + halfSize, top, left + halfSize, bottom);
+            } else {
+                final int right = left + mItemSize;
+                canvas.drawRect(left, top, right, bottom, mPaint);
+            }
+        }
+        if (lineCount > 0) {
+            canvas.drawLines(mLineBuffer, 0, lineCount * 4, mLinePaint);
+        }
+    }
+
+    /**
+     * 间隔模式下在所有item下面画一个矩形，范围从第一个item的起点到最后一个item的分割线末端，
+     * item本身会盖住矩形，只有间隔露出来。线性布局的child按布局顺序排列，只看首尾两个child
+     *
+     * @param canvas
+     * @param parent
+     * @param first  第一个child
+     * @param last   最后一个child
+     * @return 是否画了
+     */
+    private boolean drawGapBackground(Canvas canvas, RecyclerView parent, View first, View last) {
+        final RecyclerView.LayoutManager layoutManager = parent.getLayoutManager();
+        if (layoutManager == null) {
+            return false;
+        }
+        if (mOrientation == LinearLayoutManager.VERTICAL) {
+            final int left = parent.getPaddingLeft() + mPaddingLeft;
+            final int right = parent.getMeasuredWidth() - parent.getPaddingRight() - mPaddingRight;
+            final int top = Math.min(layoutManager.getDecoratedTop(first), layoutManager.getDecoratedTop(last));
+            final int bottom = Math.max(layoutManager.getDecoratedBottom(first), layoutManager.getDecoratedBottom(last));
+            canvas.drawRect(left, top, right, bottom, mPaint);
+        } else {
+            final int top = parent.getPaddingTop();
+            final int bottom = parent.getMeasuredHeight() - parent.getPaddingBottom();
+            final int left = Math.min(layoutManager.getDecoratedLeft(first), layoutManager.getDecoratedLeft(last));
+            final int right = Math.max(layoutManager.getDecoratedRight(first), layoutManager.getDecoratedRight(last));
             canvas.drawRect(left, top, right, bottom, mPaint);
         }
+        return true;
+    }
+
+    /**
+     * 间隔模式只用于实线的线性列表，item动画时item会移动或变透明，这时退回逐条绘制
+     */
+    private boolean isGapModeActive(RecyclerView parent) {
+        return mGapMode && mPaint != null && mDashShader == null && !hasStyleRules() && !mSkipInvisibleChildren
+                && !isGridLayout(parent.getLayoutManager()) && !parent.isAnimating();
+    }
+
+    /**
+     * 开启{@link #enableSkipInvisibleChildren(boolean)}时，透明或者正在消失的item不画分割线
+     */
+    private boolean isSkippedChild(View child, RecyclerView.LayoutParams layoutParams) {
+        return mSkipInvisibleChildren && (child.getAlpha() <= 0f || layoutParams.isItemRemoved());
+    }
+
+    /**
+     * 是否隐藏头部或尾部的分割线，和getItemOffsets的判断一致。
+     * 直接用绘制时已经拿到的child的position判断，不需要再查找第一个和最后一个可见item
+     *
+     * @param position child的layout position
+     * @param itemCount item总数
+     */
+    private boolean isEdgeDividerHidden(int position, int itemCount) {
+        if (!enableHeaderDivider && position == 0) {
+            return true;
+        }
+        return !enableFooterDivider && itemCount > 0 && position == itemCount - 1;
+    }
+
+    /**
+     * 绘制网格 item 分割线，直接填充getItemOffsets留出的四边区域，
+     * 行列之间的间隔由相邻两个item各留一部分，拼起来就是完整的分割线
+     *
+     * @param canvas
+     * @param parent
+     * @param children
+     */
+    private void drawGrid(Canvas canvas, RecyclerView parent, DecorationChildTable children) {
+        final int childSize = children.size();
+        for (int i = 0; i < childSize; i++) {
+            final View child = children.getView(i);
+            RecyclerView.LayoutParams layoutParams = children.getLayoutParams(i);
+            if (isSkippedChild(child, layoutParams)) {
+                continue;
+            }
+            parent.getDecoratedBoundsWithMargins(child, mDecoratedBounds);
+            if (!mClipBounds.intersects(mDecoratedBounds.left, mDecoratedBounds.top,
+                    mDecoratedBounds.right, mDecoratedBounds.bottom)) {
+                continue;
+            }
+            final int childLeft = child.getLeft() - layoutParams.leftMargin;
+            final int childTop = child.getTop() - layoutParams.topMargin;
+            final int childRight = child.getRight() + layoutParams.rightMargin;
+            final int childBottom = child.getBottom() + layoutParams.bottomMargin;
+            if (mDecoratedBounds.left < childLeft) {
+                canvas.drawRect(mDecoratedBounds.left, mDecoratedBounds.top, childLeft, mDecoratedBounds.bottom, mGridPaint);
+            }
+            if (mDecoratedBounds.right > childRight) {
+                canvas.drawRect(childRight, mDecoratedBounds.top, mDecoratedBounds.right, mDecoratedBounds.bottom, mGridPaint);
+            }
+            if (mDecoratedBounds.top < childTop) {
+                canvas.drawRect(childLeft, mDecoratedBounds.top, childRight, childTop, mGridPaint);
+            }
+            if (mDecoratedBounds.bottom > childBottom) {
+                canvas.drawRect(childLeft, childBottom, childRight, mDecoratedBounds.bottom, mGridPaint);
+            }
+        }
+    }
+
+    /**
+     * 把虚线贴图的起点对齐到分割线的起点，起点不变时不重复设置
+     *
+     * @param phase 纵向列表为分割线的left，横向列表为分割线的top
+     */
+    private void updateDashPhase(int phase) {
+        if (mDashShader == null || mDashPhase == phase) {
+            return;
+        }
+        mDashPhase = phase;
+        if (mOrientation == LinearLayoutManager.VERTICAL) {
+            mDashMatrix.setTranslate(phase, 0);
+        } else {
+            mDashMatrix.setTranslate(0, phase);
+        }
+        mDashShader.setLocalMatrix(mDashMatrix);
+    }
+
+    /**
+     * 保证缓冲区能放下lineCount条线，只在不够时扩容，稳定滚动时不会分配内存
+     */
+    private void ensureLineBufferCapacity(int lineCount) {
+        final int required = lineCount * 4;
+        if (mLineBuffer.length < required) {
+            mLineBuffer = new float[Math.max(required, mLineBuffer.length * 2)];
+        }
+    }
+
+    /**
+     * 把一条线的两个端点写入缓冲区
+     *
+     * @return 写入后的线条数
+     */
+    private int appendLine(int lineCount, float startX, float startY, float stopX, float stopY) {
+        final int offset = lineCount * 4;
+        mLineBuffer[offset] = startX;
+        mLineBuffer[offset + 1] = startY;
+        mLineBuffer[offset + 2] = stopX;
+        mLineBuffer[offset + 3] = stopY;
+        return lineCount + 1;
     }
 
     /**
@@ -211,16 +824,313 @@ public class DefaultRecyclerViewDivider extends RecyclerView.ItemDecoration {
         if (itemPosition == RecyclerView.NO_POSITION) {
             return;
         }
+        final RecyclerView.LayoutManager layoutManager = parent.getLayoutManager();
+        if (layoutManager instanceof GridLayoutManager) {
+            getGridItemOffsets(outRect, parent, (GridLayoutManager) layoutManager, itemPosition, itemCount);
+            return;
+        }
+        if (layoutManager instanceof StaggeredGridLayoutManager) {
+            getStaggeredGridItemOffsets(outRect, view, (StaggeredGridLayoutManager) layoutManager, itemPosition, itemCount);
+            return;
+        }
         if (!enableHeaderDivider && itemPosition == 0) {
             outRect.setEmpty();
         } else if (!enableFooterDivider && itemCount > 0 && itemPosition == itemCount - 1) {
             outRect.setEmpty();
         } else {
+            int size = mItemSize;
+            if (hasStyleRules()) {
+                updateAdapter(parent);
+                final DividerStyle style = resolveStyle(parent, itemPosition,
+                        parent.getChildViewHolder(view).getItemViewType());
+                if (style == STYLE_NONE) {
+                    outRect.setEmpty();
+                    return;
+                }
+                if (style != STYLE_DEFAULT) {
+                    size = style.mSize;
+                }
+            }
             if (mOrientation == LinearLayoutManager.VERTICAL) {
-                outRect.set(0, 0, 0, mItemSize);
+                outRect.set(0, 0, 0, size);
             } else {
-                outRect.set(0, 0, mItemSize, 0);
+                outRect.set(0, 0, size, 0);
+            }
+        }
+    }
+
+    /**
+     * 网格布局的item偏移，根据span index和span size算出行列边缘，
+     * 算过的position直接从缓存取，不再调用SpanSizeLookup
+     */
+    private void getGridItemOffsets(Rect outRect, RecyclerView parent, GridLayoutManager layoutManager,
+                                    int itemPosition, int itemCount) {
+        updateAdapter(parent);
+        final int spanCount = layoutManager.getSpanCount();
+        final GridLayoutManager.SpanSizeLookup spanSizeLookup = layoutManager.getSpanSizeLookup();
+        mSpanOffsets.validate(spanSizeLookup, spanCount, itemCount);
+        if (mSpanOffsets.get(itemPosition, outRect)) {
+            return;
+        }
+
+        int lastSpanGroup = mSpanOffsets.getLastSpanGroup();
+        if (lastSpanGroup < 0 && itemCount > 0) {
+            lastSpanGroup = spanSizeLookup.getSpanGroupIndex(itemCount - 1, spanCount);
+            mSpanOffsets.setLastSpanGroup(lastSpanGroup);
+        }
+        final int spanSize = spanSizeLookup.getSpanSize(itemPosition);
+        final int spanIndex = spanSizeLookup.getSpanIndex(itemPosition, spanCount);
+        final int spanGroup = spanSizeLookup.getSpanGroupIndex(itemPosition, spanCount);
+        setSpanOffsets(outRect, layoutManager.getOrientation(), spanIndex, spanSize, spanCount,
+                spanGroup == 0, spanGroup == lastSpanGroup);
+        mSpanOffsets.put(itemPosition, outRect);
+    }
+
+    /**
+     * 瀑布流布局的item偏移，span由布局时分配，会随布局变化，所以直接从LayoutParams读取，不做缓存。
+     * 瀑布流没有固定的行，只有第一个和最后一个item按头尾分割线处理
+     */
+    private void getStaggeredGridItemOffsets(Rect outRect, View view, StaggeredGridLayoutManager layoutManager,
+                                             int itemPosition, int itemCount) {
+        final StaggeredGridLayoutManager.LayoutParams layoutParams =
+                (StaggeredGridLayoutManager.LayoutParams) view.getLayoutParams();
+        final int spanCount = layoutManager.getSpanCount();
+        int spanIndex = layoutParams.getSpanIndex();
+        int spanSize = 1;
+        if (layoutParams.isFullSpan() || spanIndex < 0) {
+            spanIndex = 0;
+            spanSize = spanCount;
+        }
+        setSpanOffsets(outRect, layoutManager.getOrientation(), spanIndex, spanSize, spanCount,
+                itemPosition == 0, itemCount > 0 && itemPosition == itemCount - 1);
+    }
+
+    /**
+     * 计算网格item的偏移，同一行的间隔平均分摊到每个item上，保证每个item的宽度相同
+     *
+     * @param orientation 网格的滚动方向
+     * @param firstLine   是否在第一行（横向网格为第一列）
+     * @param lastLine    是否在最后一行（横向网格为最后一列）
+     */
+    private void setSpanOffsets(Rect outRect, int orientation, int spanIndex, int spanSize, int spanCount,
+                                boolean firstLine, boolean lastLine) {
+        final int crossStart = spanIndex * mItemSize / spanCount;
+        final int crossEnd = mItemSize - (spanIndex + spanSize) * mItemSize / spanCount;
+        final int mainEnd = (firstLine && !enableHeaderDivider) || (lastLine && !enableFooterDivider) ? 0 : mItemSize;
+        if (orientation == LinearLayoutManager.VERTICAL) {
+            outRect.set(crossStart, 0, crossEnd, mainEnd);
+        } else {
+            outRect.set(0, crossStart, mainEnd, crossEnd);
+        }
+    }
+
+    private boolean hasStyleRules() {
+        return mViewTypeStyles.size() > 0 || !mPositionRules.isEmpty();
+    }
+
+    /**
+     * 解析某个position使用的分割线样式，结果按position缓存，
+     * 绘制和getItemOffsets每帧只做一次查表，不再调用getItemViewType和用户的判断条件
+     *
+     * @param viewType child的ViewHolder的view type，绘制时直接取{@link DecorationChildTable}里记录的
+     * @return 指定的样式，或者{@link #STYLE_DEFAULT}、{@link #STYLE_NONE}
+     */
+    private DividerStyle resolveStyle(RecyclerView parent, int adapterPosition, int viewType) {
+        if (!hasStyleRules()) {
+            return STYLE_DEFAULT;
+        }
+        if (adapterPosition == RecyclerView.NO_POSITION || mAdapter == null) {
+            return STYLE_DEFAULT;
+        }
+        DividerStyle style = mResolvedStyles.get(adapterPosition);
+        if (style != null) {
+            return style;
+        }
+
+        for (int i = 0; i < mPositionRules.size(); i++) {
+            final PositionRule rule = mPositionRules.get(i);
+            if (rule.predicate.apply(parent, adapterPosition)) {
+                style = rule.style;
+                break;
+            }
+        }
+        if (style == null && mViewTypeStyles.size() > 0) {
+            style = mViewTypeStyles.get(viewType);
+        }
+        if (style == null) {
+            style = STYLE_DEFAULT;
+        }
+        mResolvedStyles.put(adapterPosition, style);
+        return style;
+    }
+
+    /**
+     * 规则里保存的样式副本，颜色在这里按主题解析成颜色值
+     */
+    private DividerStyle copyStyle(DividerStyle style) {
+        DividerStyle copy = style.copy();
+        if (style.mColor != 0) {
+            copy.mResolvedColor = ResourcesCompat.getColor(mResources, style.mColor, mTheme);
+        }
+        return copy;
+    }
+
+    private void buildStyle(DividerStyle style, int defaultColor) {
+        if (style == STYLE_NONE) {
+            return;
+        }
+        style.mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        style.mPaint.setColor(style.mColor != 0 ? style.mResolvedColor : defaultColor);
+        style.mPaint.setStyle(Paint.Style.FILL);
+    }
+
+    /**
+     * adapter数据变化，span偏移和样式的position缓存都失效
+     */
+    private void onAdapterDataChanged() {
+        mSpanOffsets.clear();
+        mResolvedStyles.clear();
+        if (mAdapter != null && hasStyleRules()) {
+            mResolvedStyles.ensureCapacity(mAdapter.getItemCount());
+        }
+    }
+
+    /**
+     * adapter局部变化，只清除[start, end)的样式缓存，end之后的position平移shift。
+     * view type规则的结果跟着item走，直接平移；position条件的结果跟着position走，
+     * 增删之后从变化点的前一个position开始都要重新判断（条件可能依赖下一个item）
+     *
+     * @param shift 插入为正，移除为负，只是内容变化为0
+     */
+    private void onAdapterRangeChanged(int start, int end, int shift) {
+        mSpanOffsets.clear();
+        if (shift != 0 && !mPositionRules.isEmpty()) {
+            mResolvedStyles.clear(Math.max(start - 1, 0), Integer.MAX_VALUE);
+        }
+        if (shift > 0) {
+            mResolvedStyles.insert(start, shift, mAdapter != null ? mAdapter.getItemCount() : 0);
+        } else if (shift < 0) {
+            mResolvedStyles.remove(start, -shift);
+        } else {
+            mResolvedStyles.clear(start, end);
+        }
+    }
+
+    private static boolean isGridLayout(RecyclerView.LayoutManager layoutManager) {
+        return layoutManager instanceof GridLayoutManager || layoutManager instanceof StaggeredGridLayoutManager;
+    }
+
+    /**
+     * adapter变化时重新注册监听，数据变化时清空网格偏移缓存
+     */
+    private void updateAdapter(RecyclerView parent) {
+        if (mParent != parent) {
+            release();
+            mParent = parent;
+            mParent.addOnAttachStateChangeListener(mAttachStateListener);
+        }
+        RecyclerView.Adapter adapter = parent.getAdapter();
+        if (mAdapter != adapter) {
+            onAdapterDataChanged();
+            if (mAdapter != null) {
+                mAdapter.unregisterAdapterDataObserver(mAdapterDataObserver);
+            }
+
+            mAdapter = adapter;
+            if (mAdapter != null) {
+                mAdapter.registerAdapterDataObserver(mAdapterDataObserver);
+                if (hasStyleRules()) {
+                    mResolvedStyles.ensureCapacity(mAdapter.getItemCount());
+                }
             }
         }
     }
+
+    /**
+     * 和RecyclerView解除绑定：注销adapter监听，清空样式缓存，不再引用RecyclerView和adapter。
+     * RecyclerView从窗口移除时自动调用；调用removeItemDecoration之后需要手动调用。
+     * 之后再绘制时会重新绑定
+     */
+    public void release() {
+        if (mParent != null) {
+            mParent.removeOnAttachStateChangeListener(mAttachStateListener);
+            mParent = null;
+        }
+        if (mAdapter != null) {
+            mAdapter.unregisterAdapterDataObserver(mAdapterDataObserver);
+            mAdapter = null;
+        }
+        onAdapterDataChanged();
+    }
+
+    /**
+     * 按规则指定的分割线样式，只支持实线
+     */
+    public static class DividerStyle {
+        private int mColor;
+        private int mSize = 1;
+        private int mPaddingLeft;
+        private int mPaddingRight;
+        private Paint mPaint;
+
+        /**
+         * 副本中按主题解析好的颜色值
+         */
+        private int mResolvedColor;
+
+        /**
+         * 分割线颜色，不设置则使用divider的颜色
+         */
+        public DividerStyle setColor(@ColorRes int color) {
+            this.mColor = color;
+            return this;
+        }
+
+        public DividerStyle setSize(int size) {
+            this.mSize = size;
+            return this;
+        }
+
+        /**
+         * 分割线起始边距，横向列表为上边距
+         */
+        public DividerStyle setPaddingLeft(int paddingLeft) {
+            this.mPaddingLeft = paddingLeft;
+            return this;
+        }
+
+        /**
+         * 分割线结束边距，横向列表为下边距
+         */
+        public DividerStyle setPaddingRight(int paddingRight) {
+            this.mPaddingRight = paddingRight;
+            return this;
+        }
+
+        /**
+         * divider内部使用的副本，build时画笔只写到副本上
+         */
+        private DividerStyle copy() {
+            DividerStyle style = new DividerStyle();
+            style.mColor = mColor;
+            style.mSize = mSize;
+            style.mPaddingLeft = mPaddingLeft;
+            style.mPaddingRight = mPaddingRight;
+            return style;
+        }
+    }
+
+    public interface PositionPredicate {
+        boolean apply(RecyclerView parent, int adapterPosition);
+    }
+
+    private static class PositionRule {
+        final PositionPredicate predicate;
+        final DividerStyle style;
+
+        PositionRule(PositionPredicate predicate, DividerStyle style) {
+            this.predicate = predicate;
+            this.style = style;
+        }
+    }
 }
@@ -0,0 +1,240 @@
+package com.setsailz.backups;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * debug包使用的内存泄漏检查，release包中所有方法都直接返回
+ * decoration、adapter、dialog等对象登记自己所属的Activity，Activity销毁后一段时间，
+ * 如果这些对象（或者Activity本身）还没有被回收，就打印日志并回调{@link OnLeakListener}。
+ * 只持有弱引用，不会因为检查本身造成泄漏
+ */
+public final class LeakWatcher {
+    private static final String TAG = "LeakWatcher";
+
+    /**
+     * Activity销毁后等待多久再检查，给正常的释放留出时间
+     */
+    private static final long CHECK_DELAY_MS = 5000;
+
+    private static final ReferenceQueue<Object> sQueue = new ReferenceQueue<>();
+
+    /**
+     * 已经应该被回收、等待检查的引用
+     */
+    private static final Set<WatchedReference> sPending = new HashSet<>();
+
+    /**
+     * Activity和它拥有的对象，key和value都是弱引用
+     */
+    private static final WeakHashMap<Activity, List<WatchedReference>> sOwned = new WeakHashMap<>();
+
+    private static Handler sHandler;
+    private static boolean sInstalled;
+    private static OnLeakListener sOnLeakListener;
+
+    private LeakWatcher() {
+    }
+
+    /**
+     * 开始监听Activity销毁，{@link #watchOwned(Object, Context)}第一次调用时也会自动安装
+     */
+    public static void install(Application application) {
+        if (!BuildConfig.DEBUG) {
+            return;
+        }
+        synchronized (LeakWatcher.class) {
+            if (sInstalled) {
+                return;
+            }
+            sInstalled = true;
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        application.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+            @Override
+            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+            }
+
+            @Override
+            public void onActivityStarted(Activity activity) {
+            }
+
+            @Override
+            public void onActivityResumed(Activity activity) {
+            }
+
+            @Override
+            public void onActivityPaused(Activity activity) {
+            }
+
+            @Override
+            public void onActivityStopped(Activity activity) {
+            }
+
+            @Override
+            public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+            }
+
+            @Override
+            public void onActivityDestroyed(Activity activity) {
+                onHostDestroyed(activity);
+            }
+        });
+    }
+
+    public static void setOnLeakListener(OnLeakListener listener) {
+        sOnLeakListener = listener;
+    }
+
+    /**
+     * 登记object属于context所在的Activity，Activity销毁后object也应该被回收
+     *
+     * @param object  decoration、adapter、dialog等
+     * @param context object使用的context，不是Activity时忽略
+     */
+    public static void watchOwned(Object object, Context context) {
+        if (!BuildConfig.DEBUG || object == null || context == null) {
+            return;
+        }
+        Activity host = findActivity(context);
+        if (host == null) {
+            return;
+        }
+        install(host.getApplication());
+        synchronized (LeakWatcher.class) {
+            List<WatchedReference> owned = sOwned.get(host);
+            if (owned == null) {
+                owned = new ArrayList<>();
+                sOwned.put(host, owned);
+            }
+            for (int i = 0; i < owned.size(); i++) {
+                if (owned.get(i).get() == object) {
+                    return;
+                }
+            }
+            owned.add(new WatchedReference(object, describe(object) + " of " + describe(host), null));
+        }
+    }
+
+    /**
+     * 对象已经不再使用，延时检查它是否被回收
+     */
+    public static void expectReleased(Object object, String description) {
+        if (!BuildConfig.DEBUG || object == null) {
+            return;
+        }
+        final WatchedReference reference = new WatchedReference(object, description, sQueue);
+        synchronized (LeakWatcher.class) {
+            if (sHandler == null) {
+                return;
+            }
+            sPending.add(reference);
+            sHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    check(reference);
+                }
+            }, CHECK_DELAY_MS);
+        }
+    }
+
+    private static void onHostDestroyed(Activity host) {
+        List<WatchedReference> owned;
+        synchronized (LeakWatcher.class) {
+            owned = sOwned.remove(host);
+        }
+        expectReleased(host, describe(host));
+        if (owned == null) {
+            return;
+        }
+        for (int i = 0; i < owned.size(); i++) {
+            WatchedReference reference = owned.get(i);
+            expectReleased(reference.get(), reference.description);
+        }
+    }
+
+    private static void check(WatchedReference reference) {
+        removeReleased();
+        if (!isPending(reference)) {
+            return;
+        }
+        // 还没被回收时先主动GC一次，排除只是还没轮到回收的情况
+        Runtime.getRuntime().gc();
+        System.runFinalization();
+        removeReleased();
+        if (!isPending(reference)) {
+            return;
+        }
+        synchronized (LeakWatcher.class) {
+            sPending.remove(reference);
+        }
+        Log.w(TAG, reference.description + " outlived its host");
+        OnLeakListener listener = sOnLeakListener;
+        if (listener != null) {
+            listener.onLeak(reference.description);
+        }
+    }
+
+    private static void removeReleased() {
+        WatchedReference reference;
+        while ((reference = (WatchedReference) sQueue.poll()) != null) {
+            synchronized (LeakWatcher.class) {
+                sPending.remove(reference);
+            }
+        }
+    }
+
+    private static boolean isPending(WatchedReference reference) {
+        synchronized (LeakWatcher.class) {
+            return sPending.contains(reference);
+        }
+    }
+
+    private static Activity findActivity(Context context) {
+        while (context instanceof ContextWrapper) {
+            if (context instanceof Activity) {
+                return (Activity) context;
+            }
+            context = ((ContextWrapper) context).getBaseContext();
+        }
+        return null;
+    }
+
+    private static String describe(Object object) {
+        return object.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(object));
+    }
+
+    public interface OnLeakListener {
+        /**
+         * 在检查线程回调
+         *
+         * @param description 泄漏对象的描述
+         */
+        void onLeak(String description);
+    }
+
+    private static class WatchedReference extends WeakReference<Object> {
+        final String description;
+
+        WatchedReference(Object referent, String description, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.description = description;
+        }
+    }
+}
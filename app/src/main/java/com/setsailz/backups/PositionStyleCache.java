@@ -0,0 +1,97 @@
+package com.setsailz.backups;
+
+import java.util.Arrays;
+
+/**
+ * 按adapter position保存分割线样式的解析结果
+ * 使用和item数量等长的数组，绑定adapter和数据增加时扩容，滚动到没解析过的position只写数组，不分配内存。
+ * adapter局部变化时只清空受影响的区间，插入和移除用{@link System#arraycopy}原地平移后面的部分
+ *
+ * @param <T> 样式类型
+ */
+final class PositionStyleCache<T> {
+    private Object[] mValues = new Object[0];
+
+    /**
+     * 保证能放下itemCount个position，只在不够时扩容
+     */
+    void ensureCapacity(int itemCount) {
+        if (mValues.length < itemCount) {
+            mValues = Arrays.copyOf(mValues, Math.max(itemCount, mValues.length * 2));
+        }
+    }
+
+    int capacity() {
+        return mValues.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int position) {
+        if (position < 0 || position >= mValues.length) {
+            return null;
+        }
+        return (T) mValues[position];
+    }
+
+    void put(int position, T value) {
+        if (position < 0) {
+            return;
+        }
+        ensureCapacity(position + 1);
+        mValues[position] = value;
+    }
+
+    void clear() {
+        Arrays.fill(mValues, null);
+    }
+
+    /**
+     * 清空[start, end)
+     */
+    void clear(int start, int end) {
+        start = Math.max(start, 0);
+        end = Math.min(end, mValues.length);
+        if (start < end) {
+            Arrays.fill(mValues, start, end, null);
+        }
+    }
+
+    /**
+     * 在start处插入count个空位，start之后的结果后移
+     *
+     * @param itemCount 插入之后的item数量
+     */
+    void insert(int start, int count, int itemCount) {
+        if (start < 0 || count <= 0) {
+            return;
+        }
+        ensureCapacity(Math.max(itemCount, start + count));
+        final int length = mValues.length;
+        if (start >= length) {
+            return;
+        }
+        final int end = Math.min(start + count, length);
+        if (end < length) {
+            System.arraycopy(mValues, start, mValues, end, length - end);
+        }
+        Arrays.fill(mValues, start, end, null);
+    }
+
+    /**
+     * 移除[start, start + count)，之后的结果前移，末尾空出的位置清空
+     */
+    void remove(int start, int count) {
+        if (start < 0 || count <= 0) {
+            return;
+        }
+        final int length = mValues.length;
+        if (start >= length) {
+            return;
+        }
+        final int end = Math.min(start + count, length);
+        if (end < length) {
+            System.arraycopy(mValues, end, mValues, start, length - end);
+        }
+        Arrays.fill(mValues, length - (end - start), length, null);
+    }
+}
@@ -0,0 +1,91 @@
+package com.setsailz.backups;
+
+import android.graphics.Rect;
+
+import java.util.Arrays;
+
+/**
+ * 网格分割线的item偏移缓存
+ * 按adapter position保存已经算好的上下左右偏移，同一个position不会再次调用SpanSizeLookup。
+ * SpanSizeLookup、spanCount或者item数量变化时整体失效，adapter数据变化时由外部调用{@link #clear()}
+ */
+final class SpanOffsetCache {
+    private int[] mOffsets = new int[0];
+
+    /**
+     * 每个position写入时的缓存版本，等于{@link #mGeneration}才有效，清空只需要版本加一
+     */
+    private int[] mStamps = new int[0];
+    private int mGeneration = 1;
+
+    private Object mSpanSizeLookup;
+    private int mSpanCount = -1;
+    private int mItemCount = -1;
+
+    /**
+     * 最后一行（横向网格为最后一列）的span group，-1表示还没算
+     */
+    private int mLastSpanGroup = -1;
+
+    /**
+     * 检查缓存是否还对应当前的网格配置，不对应则清空
+     */
+    void validate(Object spanSizeLookup, int spanCount, int itemCount) {
+        if (mSpanSizeLookup != spanSizeLookup || mSpanCount != spanCount || mItemCount != itemCount) {
+            clear();
+            mSpanSizeLookup = spanSizeLookup;
+            mSpanCount = spanCount;
+            mItemCount = itemCount;
+        }
+        if (mStamps.length < itemCount) {
+            final int capacity = Math.max(itemCount, mStamps.length * 2);
+            mStamps = Arrays.copyOf(mStamps, capacity);
+            mOffsets = Arrays.copyOf(mOffsets, capacity * 4);
+        }
+    }
+
+    /**
+     * 取出缓存的偏移
+     *
+     * @return 有缓存返回true，并把偏移写入outRect
+     */
+    boolean get(int position, Rect outRect) {
+        if (position < 0 || position >= mStamps.length || mStamps[position] != mGeneration) {
+            return false;
+        }
+        final int offset = position * 4;
+        outRect.set(mOffsets[offset], mOffsets[offset + 1], mOffsets[offset + 2], mOffsets[offset + 3]);
+        return true;
+    }
+
+    void put(int position, Rect offsets) {
+        if (position < 0 || position >= mStamps.length) {
+            return;
+        }
+        final int offset = position * 4;
+        mOffsets[offset] = offsets.left;
+        mOffsets[offset + 1] = offsets.top;
+        mOffsets[offset + 2] = offsets.right;
+        mOffsets[offset + 3] = offsets.bottom;
+        mStamps[position] = mGeneration;
+    }
+
+    int getLastSpanGroup() {
+        return mLastSpanGroup;
+    }
+
+    void setLastSpanGroup(int lastSpanGroup) {
+        mLastSpanGroup = lastSpanGroup;
+    }
+
+    /**
+     * 不遍历数组，adapter每次局部刷新都会调用
+     */
+    void clear() {
+        if (++mGeneration == 0) {
+            Arrays.fill(mStamps, 0);
+            mGeneration = 1;
+        }
+        mLastSpanGroup = -1;
+    }
+}
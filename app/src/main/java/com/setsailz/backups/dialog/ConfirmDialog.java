@@ -11,6 +11,7 @@ import android.widget.Button;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import com.setsailz.backups.LeakWatcher;
 import com.setsailz.backups.R;
 
 /**
@@ -19,10 +20,12 @@ import com.setsailz.backups.R;
 public class ConfirmDialog extends Dialog {
     public ConfirmDialog(Context context) {
         super(context);
+        LeakWatcher.watchOwned(this, context);
     }
 
     public ConfirmDialog(Context context, int theme) {
         super(context, theme);
+        LeakWatcher.watchOwned(this, context);
     }
 
     public static class Builder {
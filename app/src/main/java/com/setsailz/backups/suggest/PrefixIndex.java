@@ -0,0 +1,684 @@
+package com.setsailz.backups.suggest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 磁盘上的只读前缀索引，字符串按UTF-8字节序（即码点顺序）排序，通过mmap访问，不加载到堆上，可以在多个线程同时查询。
+ * 文件格式（大端）：
+ * <pre>
+ * header       magic, version, count, blockCount, leafCount, 保留, appliedSequence(long)，共32字节
+ * blockOffsets int[blockCount]，每块在data区的起始位置
+ * weights      int[count]
+ * tree         int[2 * leafCount]，按块建的线段树，节点保存区间内权重最大的条目下标（权重相同取下标小的），-1表示空
+ * data         每{@link #BLOCK_SIZE}个条目一块，块内前缀压缩：varint(和上一条的公共前缀长度) varint(后缀长度) 后缀
+ * </pre>
+ * 前缀查找是对块首二分再块内扫描，top-K是在线段树上按权重优先展开，只和K、树高、块大小有关，和匹配的条目数无关
+ */
+public final class PrefixIndex {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x50465849;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    /**
+     * 每块的条目数，块越大文件越小，查找时块内扫描越慢
+     */
+    static final int BLOCK_SIZE = 16;
+
+    private static final PrefixIndex EMPTY = new PrefixIndex(null, 0, 0, 0, 0);
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final int mBlockCount;
+    private final int mLeafCount;
+    private final long mAppliedSequence;
+
+    private final int mOffsetsStart;
+    private final int mWeightsStart;
+    private final int mTreeStart;
+    private final int mDataStart;
+
+    private PrefixIndex(ByteBuffer buffer, int count, int blockCount, int leafCount, long appliedSequence) {
+        mBuffer = buffer;
+        mCount = count;
+        mBlockCount = blockCount;
+        mLeafCount = leafCount;
+        mAppliedSequence = appliedSequence;
+        mOffsetsStart = HEADER_SIZE;
+        mWeightsStart = mOffsetsStart + blockCount * 4;
+        mTreeStart = mWeightsStart + count * 4;
+        mDataStart = mTreeStart + leafCount * 2 * 4;
+    }
+
+    /**
+     * 没有任何条目的索引
+     */
+    public static PrefixIndex empty() {
+        return EMPTY;
+    }
+
+    /**
+     * 映射索引文件，文件关闭后映射仍然有效，直到对象被回收
+     *
+     * @throws IOException 文件不存在或者格式不正确
+     */
+    public static PrefixIndex open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer buffer;
+        try {
+            final long length = raf.length();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("索引文件格式不正确: " + file);
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            raf.close();
+        }
+
+        final int count = buffer.getInt(8);
+        final int blockCount = buffer.getInt(12);
+        final int leafCount = buffer.getInt(16);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || count < 0
+                || blockCount != (count + BLOCK_SIZE - 1) / BLOCK_SIZE || leafCount != leafCountOf(blockCount)) {
+            throw new IOException("索引文件格式不正确: " + file);
+        }
+        PrefixIndex index = new PrefixIndex(buffer, count, blockCount, leafCount, buffer.getLong(24));
+        if (index.mDataStart > buffer.capacity()) {
+            throw new IOException("索引文件格式不正确: " + file);
+        }
+        return index;
+    }
+
+    /**
+     * 条目数
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * 生成这个索引时已经合并到的追加日志序号，见{@link SuggestionIndex}
+     */
+    public long getAppliedSequence() {
+        return mAppliedSequence;
+    }
+
+    /**
+     * 以prefix开头的条目中权重最大的k个，权重相同时按字符串顺序
+     *
+     * @return 按权重从大到小排列
+     */
+    public List<Entry> lookup(String prefix, int k) {
+        if (prefix == null || k < 0) {
+            throw new IllegalArgumentException("请传入正确的参数");
+        }
+        if (mCount == 0 || k == 0) {
+            return Collections.emptyList();
+        }
+        final byte[] key = prefix.getBytes(UTF_8);
+        final BlockReader reader = new BlockReader();
+        final int lo = lowerBound(key, reader);
+        final int hi = prefixEnd(key, lo, reader);
+        if (lo >= hi) {
+            return Collections.emptyList();
+        }
+
+        final int[] indexes = topK(lo, hi, k);
+        final List<Entry> result = new ArrayList<>(indexes.length);
+        for (int index : indexes) {
+            result.add(new Entry(reader.textAt(index), weightAt(index)));
+        }
+        return result;
+    }
+
+    /**
+     * 字符串的权重，不存在时返回0
+     */
+    public int weightOf(String text) {
+        if (mCount == 0) {
+            return 0;
+        }
+        final byte[] key = text.getBytes(UTF_8);
+        final BlockReader reader = new BlockReader();
+        final int index = lowerBound(key, reader);
+        if (index < mCount && reader.seek(index) && compare(reader.mKey, reader.mKeyLength, key, key.length) == 0) {
+            return weightAt(index);
+        }
+        return 0;
+    }
+
+    /**
+     * 按顺序遍历所有条目，合并时使用
+     */
+    Cursor cursor() {
+        return new Cursor();
+    }
+
+    int weightAt(int index) {
+        return mBuffer.getInt(mWeightsStart + index * 4);
+    }
+
+    /**
+     * 第一个不小于key的条目下标
+     */
+    private int lowerBound(byte[] key, BlockReader reader) {
+        // 最后一个块首小于key的块
+        int low = 0;
+        int high = mBlockCount - 1;
+        int block = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            reader.readHead(mid);
+            if (compare(reader.mKey, reader.mKeyLength, key, key.length) < 0) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (block < 0) {
+            return 0;
+        }
+
+        reader.readHead(block);
+        do {
+            if (compare(reader.mKey, reader.mKeyLength, key, key.length) >= 0) {
+                return reader.mIndex;
+            }
+        } while (reader.next());
+        return reader.mIndex + 1;
+    }
+
+    /**
+     * 从from开始第一个不以key开头的条目下标。
+     * 有序序列里"小于key或者以key开头"的条目一定排在前面，可以二分
+     */
+    private int prefixEnd(byte[] key, int from, BlockReader reader) {
+        if (from >= mCount) {
+            return mCount;
+        }
+        int low = from / BLOCK_SIZE;
+        int high = mBlockCount - 1;
+        int block = low;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            reader.readHead(mid);
+            if (beforePrefixEnd(reader, key)) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        reader.readHead(block);
+        do {
+            if (reader.mIndex >= from && !beforePrefixEnd(reader, key)) {
+                return reader.mIndex;
+            }
+        } while (reader.next());
+        return reader.mIndex + 1;
+    }
+
+    private static boolean beforePrefixEnd(BlockReader reader, byte[] key) {
+        return startsWith(reader.mKey, reader.mKeyLength, key)
+                || compare(reader.mKey, reader.mKeyLength, key, key.length) < 0;
+    }
+
+    /**
+     * [lo, hi)中权重最大的k个条目下标。
+     * 候选按(权重, 下标)排序，线段树节点的候选就是它区间内最好的条目，弹出节点时才展开子节点
+     */
+    private int[] topK(int lo, int hi, int k) {
+        final PriorityQueue<Candidate> queue = new PriorityQueue<>();
+        final int firstFull = (lo + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        final int lastFull = hi / BLOCK_SIZE;
+        if (firstFull >= lastFull) {
+            offerEntries(queue, lo, hi);
+        } else {
+            offerEntries(queue, lo, firstFull * BLOCK_SIZE);
+            offerEntries(queue, lastFull * BLOCK_SIZE, hi);
+            int left = firstFull + mLeafCount;
+            int right = lastFull + mLeafCount;
+            while (left < right) {
+                if ((left & 1) != 0) {
+                    offerNode(queue, left++);
+                }
+                if ((right & 1) != 0) {
+                    offerNode(queue, --right);
+                }
+                left >>= 1;
+                right >>= 1;
+            }
+        }
+
+        int[] result = new int[k];
+        int size = 0;
+        Candidate candidate;
+        while (size < k && (candidate = queue.poll()) != null) {
+            if (candidate.node < 0) {
+                result[size++] = candidate.index;
+            } else if (candidate.node < mLeafCount) {
+                offerNode(queue, candidate.node * 2);
+                offerNode(queue, candidate.node * 2 + 1);
+            } else {
+                final int block = candidate.node - mLeafCount;
+                offerEntries(queue, block * BLOCK_SIZE, Math.min(mCount, (block + 1) * BLOCK_SIZE));
+            }
+        }
+        return size == k ? result : Arrays.copyOf(result, size);
+    }
+
+    private void offerEntries(PriorityQueue<Candidate> queue, int from, int to) {
+        for (int i = from; i < to; i++) {
+            queue.offer(new Candidate(weightAt(i), i, -1));
+        }
+    }
+
+    private void offerNode(PriorityQueue<Candidate> queue, int node) {
+        final int best = mBuffer.getInt(mTreeStart + node * 4);
+        if (best >= 0) {
+            queue.offer(new Candidate(weightAt(best), best, node));
+        }
+    }
+
+    /**
+     * 无符号字节序比较
+     */
+    static int compare(byte[] a, int aLength, byte[] b, int bLength) {
+        final int length = Math.min(aLength, bLength);
+        for (int i = 0; i < length; i++) {
+            final int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    private static boolean startsWith(byte[] key, int keyLength, byte[] prefix) {
+        if (keyLength < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int leafCountOf(int blockCount) {
+        int leafCount = 1;
+        while (leafCount < blockCount) {
+            leafCount <<= 1;
+        }
+        return leafCount;
+    }
+
+    /**
+     * 查询结果
+     */
+    public static final class Entry {
+        public final String text;
+        public final int weight;
+
+        Entry(String text, int weight) {
+            this.text = text;
+            this.weight = weight;
+        }
+
+        @Override
+        public String toString() {
+            return text + "(" + weight + ")";
+        }
+    }
+
+    private static final class Candidate implements Comparable<Candidate> {
+        final int weight;
+        final int index;
+        /**
+         * 线段树节点，-1表示单个条目
+         */
+        final int node;
+
+        Candidate(int weight, int index, int node) {
+            this.weight = weight;
+            this.index = index;
+            this.node = node;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            if (weight != other.weight) {
+                return weight > other.weight ? -1 : 1;
+            }
+            return index < other.index ? -1 : (index == other.index ? 0 : 1);
+        }
+    }
+
+    /**
+     * 在块内顺序解码条目，每次查询一个，不能跨线程使用
+     */
+    private class BlockReader {
+        byte[] mKey = new byte[64];
+        int mKeyLength;
+        int mIndex;
+        private int mPosition;
+
+        /**
+         * 读取块首
+         */
+        void readHead(int block) {
+            mIndex = block * BLOCK_SIZE;
+            mPosition = mDataStart + mBuffer.getInt(mOffsetsStart + block * 4);
+            readEntry();
+        }
+
+        /**
+         * 读取块内下一条，已经是块内最后一条或者最后一个条目时返回false
+         */
+        boolean next() {
+            if ((mIndex + 1) % BLOCK_SIZE == 0 || mIndex + 1 >= mCount) {
+                return false;
+            }
+            mIndex++;
+            readEntry();
+            return true;
+        }
+
+        private void readEntry() {
+            final int shared = readVarint();
+            final int suffixLength = readVarint();
+            final int length = shared + suffixLength;
+            if (length > mKey.length) {
+                mKey = Arrays.copyOf(mKey, Math.max(length, mKey.length * 2));
+            }
+            for (int i = 0; i < suffixLength; i++) {
+                mKey[shared + i] = mBuffer.get(mPosition++);
+            }
+            mKeyLength = length;
+        }
+
+        /**
+         * 定位到指定条目
+         */
+        boolean seek(int index) {
+            readHead(index / BLOCK_SIZE);
+            while (mIndex < index) {
+                if (!next()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String textAt(int index) {
+            seek(index);
+            return new String(mKey, 0, mKeyLength, UTF_8);
+        }
+
+        private int readVarint() {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = mBuffer.get(mPosition++);
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+
+    /**
+     * 顺序遍历所有条目
+     */
+    final class Cursor {
+        private final BlockReader mReader = new BlockReader();
+        private int mNext;
+
+        /**
+         * 移动到下一条，没有更多条目时返回false
+         */
+        boolean next() {
+            if (mNext >= mCount) {
+                return false;
+            }
+            if (mNext % BLOCK_SIZE == 0) {
+                mReader.readHead(mNext / BLOCK_SIZE);
+            } else {
+                mReader.next();
+            }
+            mNext++;
+            return true;
+        }
+
+        byte[] key() {
+            return mReader.mKey;
+        }
+
+        int keyLength() {
+            return mReader.mKeyLength;
+        }
+
+        int weight() {
+            return weightAt(mReader.mIndex);
+        }
+    }
+
+    /**
+     * 按顺序写入条目生成索引文件。
+     * 条目先写到临时文件里，{@link #finish()}时再拼成最终文件并替换，写入过程中只在堆上保留每块一个int的线段树
+     */
+    public static final class Writer {
+        private final File mFile;
+        private final File mDataFile;
+        private final File mOffsetsFile;
+        private final File mWeightsFile;
+        private final DataOutputStream mData;
+        private final DataOutputStream mOffsets;
+        private final DataOutputStream mWeights;
+
+        private long mAppliedSequence;
+        private int mCount;
+        private long mDataSize;
+        private byte[] mPrevious = new byte[64];
+        private int mPreviousLength = -1;
+
+        public Writer(File file) throws IOException {
+            mFile = file;
+            mDataFile = new File(file.getPath() + ".data.tmp");
+            mOffsetsFile = new File(file.getPath() + ".offsets.tmp");
+            mWeightsFile = new File(file.getPath() + ".weights.tmp");
+            mData = openOutput(mDataFile);
+            mOffsets = openOutput(mOffsetsFile);
+            mWeights = openOutput(mWeightsFile);
+        }
+
+        public Writer setAppliedSequence(long appliedSequence) {
+            mAppliedSequence = appliedSequence;
+            return this;
+        }
+
+        /**
+         * 写入一条，必须按码点顺序严格递增
+         *
+         * @param weight 不能为负数
+         */
+        public Writer add(String text, int weight) throws IOException {
+            final byte[] key = text.getBytes(UTF_8);
+            add(key, key.length, weight);
+            return this;
+        }
+
+        void add(byte[] key, int keyLength, int weight) throws IOException {
+            if (weight < 0 || (mPreviousLength >= 0 && compare(mPrevious, mPreviousLength, key, keyLength) >= 0)) {
+                throw new IllegalArgumentException("请传入正确的参数");
+            }
+
+            int shared = 0;
+            if (mCount % BLOCK_SIZE == 0) {
+                mOffsets.writeInt((int) mDataSize);
+            } else {
+                final int max = Math.min(mPreviousLength, keyLength);
+                while (shared < max && mPrevious[shared] == key[shared]) {
+                    shared++;
+                }
+            }
+            mDataSize += writeVarint(mData, shared);
+            mDataSize += writeVarint(mData, keyLength - shared);
+            mData.write(key, shared, keyLength - shared);
+            mDataSize += keyLength - shared;
+            mWeights.writeInt(weight);
+            if (mDataSize > Integer.MAX_VALUE / 2) {
+                throw new IOException("索引文件过大");
+            }
+
+            if (mPrevious.length < keyLength) {
+                mPrevious = new byte[Math.max(keyLength, mPrevious.length * 2)];
+            }
+            System.arraycopy(key, 0, mPrevious, 0, keyLength);
+            mPreviousLength = keyLength;
+            mCount++;
+        }
+
+        /**
+         * 生成索引文件，替换已有的文件，返回映射好的索引
+         */
+        public PrefixIndex finish() throws IOException {
+            try {
+                mData.close();
+                mOffsets.close();
+                mWeights.close();
+
+                final int blockCount = (mCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+                final int leafCount = leafCountOf(blockCount);
+                final int[] tree = buildTree(blockCount, leafCount);
+
+                final File tmp = new File(mFile.getPath() + ".tmp");
+                final DataOutputStream out = openOutput(tmp);
+                try {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(mCount);
+                    out.writeInt(blockCount);
+                    out.writeInt(leafCount);
+                    out.writeInt(0);
+                    out.writeLong(mAppliedSequence);
+                    copy(mOffsetsFile, out);
+                    copy(mWeightsFile, out);
+                    for (int node : tree) {
+                        out.writeInt(node);
+                    }
+                    copy(mDataFile, out);
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(mFile)) {
+                    throw new IOException("无法替换索引文件: " + mFile);
+                }
+            } finally {
+                deleteTempFiles();
+            }
+            return open(mFile);
+        }
+
+        /**
+         * 放弃写入，删除临时文件
+         */
+        public void abort() {
+            try {
+                mData.close();
+                mOffsets.close();
+                mWeights.close();
+            } catch (IOException ignored) {
+            }
+            deleteTempFiles();
+        }
+
+        /**
+         * 叶子是每块权重最大的条目，内部节点取两个子节点中更好的
+         */
+        private int[] buildTree(int blockCount, int leafCount) throws IOException {
+            final int[] tree = new int[leafCount * 2];
+            final int[] treeWeights = new int[leafCount * 2];
+            Arrays.fill(tree, -1);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mWeightsFile)));
+            try {
+                for (int i = 0; i < mCount; i++) {
+                    final int weight = in.readInt();
+                    final int leaf = leafCount + i / BLOCK_SIZE;
+                    if (tree[leaf] < 0 || weight > treeWeights[leaf]) {
+                        tree[leaf] = i;
+                        treeWeights[leaf] = weight;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            for (int node = leafCount - 1; node > 0; node--) {
+                final int left = node * 2;
+                final int right = left + 1;
+                // 左边的下标更小，权重相同时取左边
+                final int best = tree[right] < 0 || (tree[left] >= 0 && treeWeights[left] >= treeWeights[right]) ? left : right;
+                tree[node] = tree[best];
+                treeWeights[node] = treeWeights[best];
+            }
+            return tree;
+        }
+
+        private void deleteTempFiles() {
+            mDataFile.delete();
+            mOffsetsFile.delete();
+            mWeightsFile.delete();
+        }
+
+        private static DataOutputStream openOutput(File file) throws IOException {
+            return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        }
+
+        private static void copy(File file, OutputStream out) throws IOException {
+            final byte[] buffer = new byte[64 * 1024];
+            InputStream in = new FileInputStream(file);
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        private static int writeVarint(DataOutputStream out, int value) throws IOException {
+            int size = 1;
+            while ((value & ~0x7f) != 0) {
+                out.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+                size++;
+            }
+            out.writeByte(value);
+            return size;
+        }
+    }
+}
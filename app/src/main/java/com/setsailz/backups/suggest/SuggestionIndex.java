@@ -0,0 +1,549 @@
+package com.setsailz.backups.suggest;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 输入框的联想词索引：磁盘上的{@link PrefixIndex}加上一个追加日志。
+ * 新增的词先放在内存里，日志的写入和刷盘交给后台的executor，调用线程不做磁盘IO，进程在写入前被杀掉时会丢失最近追加的几条；
+ * 日志达到阈值后在后台和基础索引合并成新的索引文件，合并期间查询和追加都不受影响。
+ * 查询只读取一个不可变的快照，不加锁，可以在任意线程调用，配合{@link SuggestionQueryListener}在输入框的查询线程中使用。
+ * <p>
+ * 日志中每条记录带递增的序号，基础索引记录已经合并到的序号，合并完成后重写日志时崩溃，重新打开时也不会重复计算
+ */
+public final class SuggestionIndex implements Closeable {
+    /**
+     * 默认日志中有多少个不同的词时开始合并
+     */
+    private static final int DEFAULT_MERGE_THRESHOLD = 1024;
+
+    /**
+     * 词的最大长度，保证日志记录不超过writeUTF的限制
+     */
+    private static final int MAX_TEXT_LENGTH = 4096;
+
+    /**
+     * 按码点顺序，和{@link PrefixIndex}的UTF-8字节序一致
+     */
+    static final Comparator<String> CODE_POINT_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            final int length = Math.min(a.length(), b.length());
+            for (int i = 0; i < length; i++) {
+                final char ca = a.charAt(i);
+                final char cb = b.charAt(i);
+                if (ca != cb) {
+                    // 代理对在UTF-16里比部分BMP字符小，在码点顺序里比所有BMP字符大
+                    if (Character.isSurrogate(ca) != Character.isSurrogate(cb)) {
+                        return Character.isSurrogate(ca) ? 1 : -1;
+                    }
+                    return ca - cb;
+                }
+            }
+            return a.length() - b.length();
+        }
+    };
+
+    private final File mIndexFile;
+    private final File mLogFile;
+    private final Executor mMergeExecutor;
+    private final Object mWriteLock = new Object();
+    /**
+     * 写日志文件时持有，需要同时持有时先拿它再拿mWriteLock
+     */
+    private final Object mLogLock = new Object();
+    private final AtomicBoolean mMerging = new AtomicBoolean();
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+
+    /**
+     * 已经加到内存里、还没写进日志文件的记录，只在持有mWriteLock时访问
+     */
+    private ArrayList<LogRecord> mPendingRecords = new ArrayList<>();
+
+    private volatile Snapshot mSnapshot;
+    private int mMergeThreshold = DEFAULT_MERGE_THRESHOLD;
+    private long mSequence;
+    private DataOutputStream mLog;
+    private boolean mClosed;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // 先清掉标记，写入期间新增的记录会重新安排一次
+            mFlushScheduled.set(false);
+            try {
+                flushLog();
+            } catch (IOException ignored) {
+                // 写失败的记录还在内存里，下次合并时写进索引
+            }
+        }
+    };
+
+    private final Runnable mMergeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                merge();
+            } catch (IOException ignored) {
+                // 日志里的内容都还在，下次达到阈值时再合并
+            } finally {
+                mMerging.set(false);
+            }
+        }
+    };
+
+    private SuggestionIndex(File directory, String name, Executor mergeExecutor) {
+        mIndexFile = new File(directory, name + ".idx");
+        mLogFile = new File(directory, name + ".log");
+        mMergeExecutor = mergeExecutor;
+    }
+
+    /**
+     * 打开索引，不存在时创建，会回放日志，应该在后台线程调用
+     *
+     * @param directory     索引文件所在目录
+     * @param name          文件名，生成name.idx和name.log
+     * @param mergeExecutor 执行后台合并
+     */
+    public static SuggestionIndex open(File directory, String name, Executor mergeExecutor) throws IOException {
+        if (directory == null || name == null || name.length() == 0 || mergeExecutor == null) {
+            throw new IllegalArgumentException("请传入正确的参数");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("无法创建目录: " + directory);
+        }
+        SuggestionIndex index = new SuggestionIndex(directory, name, mergeExecutor);
+        index.load();
+        return index;
+    }
+
+    /**
+     * 设置日志中有多少个不同的词时开始后台合并
+     */
+    public SuggestionIndex setMergeThreshold(int mergeThreshold) {
+        if (mergeThreshold <= 0) {
+            throw new IllegalArgumentException("请传入正确的参数");
+        }
+        mMergeThreshold = mergeThreshold;
+        return this;
+    }
+
+    /**
+     * 增加一个词的权重，不存在时新增。只更新内存并安排后台追加一条日志，不需要重建索引，可以在主线程调用
+     *
+     * @param text   长度不超过4096
+     * @param weight 大于0，比如使用一次加1
+     */
+    public void add(String text, int weight) throws IOException {
+        if (text == null || text.length() == 0 || text.length() > MAX_TEXT_LENGTH || weight <= 0
+                || hasUnpairedSurrogate(text)) {
+            throw new IllegalArgumentException("请传入正确的参数");
+        }
+        final boolean needMerge;
+        synchronized (mWriteLock) {
+            if (mClosed) {
+                throw new IOException("索引已经关闭");
+            }
+            mPendingRecords.add(new LogRecord(++mSequence, text, weight));
+
+            final Snapshot snapshot = mSnapshot;
+            snapshot.active.put(text, snapshot.newLogEntry(text, weight));
+            needMerge = snapshot.active.size() >= mMergeThreshold;
+        }
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            mMergeExecutor.execute(mFlushRunnable);
+        }
+        if (needMerge) {
+            scheduleMerge();
+        }
+    }
+
+    /**
+     * 以prefix开头的词中权重最大的k个，权重相同时按字符串顺序。
+     * 不加锁，开销是基础索引的一次top-K加上日志中匹配的词数，可以在任意线程调用
+     */
+    public List<String> lookup(String prefix, int k) {
+        if (prefix == null || k < 0) {
+            throw new IllegalArgumentException("请传入正确的参数");
+        }
+        if (k == 0) {
+            return Collections.emptyList();
+        }
+        final Snapshot snapshot = mSnapshot;
+
+        // 权重只会增加，日志之外的词在最终结果里的排名不会高于它在基础索引里的排名，取基础索引的前k个就够了
+        final Map<String, Integer> weights = new HashMap<>();
+        for (PrefixIndex.Entry entry : snapshot.base.lookup(prefix, k)) {
+            weights.put(entry.text, entry.weight);
+        }
+        collectLog(snapshot.merging, prefix, weights);
+        collectLog(snapshot.active, prefix, weights);
+
+        final List<Map.Entry<String, Integer>> candidates = new ArrayList<>(weights.entrySet());
+        Collections.sort(candidates, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                final int diff = b.getValue().compareTo(a.getValue());
+                return diff != 0 ? diff : CODE_POINT_ORDER.compare(a.getKey(), b.getKey());
+            }
+        });
+        final int size = Math.min(k, candidates.size());
+        final List<String> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(candidates.get(i).getKey());
+        }
+        return result;
+    }
+
+    /**
+     * 立即把日志合并到基础索引，在调用线程执行，已经有合并在进行时直接返回
+     */
+    public void mergeNow() throws IOException {
+        if (!mMerging.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            merge();
+        } finally {
+            mMerging.set(false);
+        }
+    }
+
+    /**
+     * 关闭前把还没写入的记录写进日志，会做磁盘IO
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (mLogLock) {
+            final ArrayList<LogRecord> records;
+            synchronized (mWriteLock) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                records = takePendingRecords();
+            }
+            try {
+                writeRecords(records);
+            } finally {
+                mLog.close();
+            }
+        }
+    }
+
+    /**
+     * 把等待中的记录追加到日志并刷盘，在后台执行
+     */
+    private void flushLog() throws IOException {
+        synchronized (mLogLock) {
+            final ArrayList<LogRecord> records;
+            synchronized (mWriteLock) {
+                if (mClosed) {
+                    return;
+                }
+                records = takePendingRecords();
+            }
+            writeRecords(records);
+        }
+    }
+
+    private ArrayList<LogRecord> takePendingRecords() {
+        final ArrayList<LogRecord> records = mPendingRecords;
+        mPendingRecords = new ArrayList<>();
+        return records;
+    }
+
+    private void writeRecords(List<LogRecord> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        for (LogRecord record : records) {
+            writeRecord(mLog, record.sequence, record.text, record.weight);
+        }
+        mLog.flush();
+    }
+
+    private void scheduleMerge() {
+        if (mMerging.compareAndSet(false, true)) {
+            mMergeExecutor.execute(mMergeRunnable);
+        }
+    }
+
+    /**
+     * 回放日志中没有合并过的记录，截掉最后不完整的记录
+     */
+    private void load() throws IOException {
+        final PrefixIndex base = mIndexFile.exists() ? PrefixIndex.open(mIndexFile) : PrefixIndex.empty();
+        final Snapshot snapshot = new Snapshot(base, newLogMap(), newLogMap());
+        mSequence = base.getAppliedSequence();
+
+        if (mLogFile.exists()) {
+            RandomAccessFile raf = new RandomAccessFile(mLogFile, "rw");
+            try {
+                long position = 0;
+                try {
+                    while (position < raf.length()) {
+                        final long sequence = raf.readLong();
+                        final String text = raf.readUTF();
+                        final int weight = raf.readInt();
+                        position = raf.getFilePointer();
+                        if (sequence > base.getAppliedSequence()) {
+                            snapshot.active.put(text, snapshot.newLogEntry(text, weight));
+                            mSequence = Math.max(mSequence, sequence);
+                        }
+                    }
+                } catch (EOFException e) {
+                    // 写入最后一条时被中断
+                    raf.setLength(position);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+
+        mSnapshot = snapshot;
+        mLog = openLog(true);
+    }
+
+    /**
+     * 冻结当前的日志，和基础索引合并成新的索引文件，再把合并期间新增的记录重写成新的日志
+     */
+    private void merge() throws IOException {
+        final Snapshot frozen;
+        final long appliedSequence;
+        synchronized (mWriteLock) {
+            final Snapshot snapshot = mSnapshot;
+            if (mClosed || snapshot.active.isEmpty()) {
+                return;
+            }
+            frozen = new Snapshot(snapshot.base, snapshot.active, newLogMap());
+            appliedSequence = mSequence;
+            mSnapshot = frozen;
+        }
+
+        PrefixIndex merged = null;
+        try {
+            merged = writeMerged(frozen.base, frozen.merging, appliedSequence);
+        } finally {
+            synchronized (mLogLock) {
+                publishMerged(merged);
+            }
+        }
+    }
+
+    /**
+     * 发布合并结果，调用时需要持有mLogLock，重写日志期间不会有后台写入
+     */
+    private void publishMerged(PrefixIndex merged) throws IOException {
+        synchronized (mWriteLock) {
+            final Snapshot current = mSnapshot;
+            if (merged == null) {
+                // 合并失败，冻结的记录放回日志
+                final Snapshot restored = new Snapshot(current.base, newLogMap(), newLogMap());
+                for (LogEntry entry : current.merging.values()) {
+                    restored.active.put(entry.text, entry);
+                }
+                for (LogEntry entry : current.active.values()) {
+                    restored.active.put(entry.text, restored.newLogEntry(entry.text, entry.delta));
+                }
+                mSnapshot = restored;
+            } else {
+                // 合并期间新增的记录，基础权重改为新索引里的
+                final Snapshot published = new Snapshot(merged, newLogMap(), newLogMap());
+                for (LogEntry entry : current.active.values()) {
+                    published.active.put(entry.text, published.newLogEntry(entry.text, entry.delta));
+                }
+                mSnapshot = published;
+                if (!mClosed) {
+                    // 还没写入的记录都在published.active里，会一起写进新日志
+                    mPendingRecords.clear();
+                    rewriteLog(published);
+                }
+            }
+        }
+    }
+
+    private PrefixIndex writeMerged(PrefixIndex base, ConcurrentNavigableMap<String, LogEntry> log,
+                                    long appliedSequence) throws IOException {
+        final PrefixIndex.Writer writer = new PrefixIndex.Writer(mIndexFile).setAppliedSequence(appliedSequence);
+        try {
+            final PrefixIndex.Cursor cursor = base.cursor();
+            boolean hasBase = cursor.next();
+            for (LogEntry entry : log.values()) {
+                final byte[] key = entry.text.getBytes(PrefixIndex.UTF_8);
+                int diff = -1;
+                while (hasBase && (diff = PrefixIndex.compare(cursor.key(), cursor.keyLength(), key, key.length)) < 0) {
+                    writer.add(cursor.key(), cursor.keyLength(), cursor.weight());
+                    hasBase = cursor.next();
+                }
+                if (hasBase && diff == 0) {
+                    writer.add(key, key.length, saturatedAdd(cursor.weight(), entry.delta));
+                    hasBase = cursor.next();
+                } else {
+                    writer.add(key, key.length, entry.delta);
+                }
+            }
+            while (hasBase) {
+                writer.add(cursor.key(), cursor.keyLength(), cursor.weight());
+                hasBase = cursor.next();
+            }
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+        return writer.finish();
+    }
+
+    /**
+     * 新日志只包含还没合并的记录，写到临时文件再替换
+     */
+    private void rewriteLog(Snapshot snapshot) throws IOException {
+        final File tmp = new File(mLogFile.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            for (LogEntry entry : snapshot.active.values()) {
+                writeRecord(out, ++mSequence, entry.text, entry.delta);
+            }
+        } finally {
+            out.close();
+        }
+        mLog.close();
+        if (!tmp.renameTo(mLogFile)) {
+            mLog = openLog(true);
+            throw new IOException("无法替换日志文件: " + mLogFile);
+        }
+        mLog = openLog(true);
+    }
+
+    private DataOutputStream openLog(boolean append) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mLogFile, append)));
+    }
+
+    private static void writeRecord(DataOutputStream out, long sequence, String text, int weight) throws IOException {
+        out.writeLong(sequence);
+        out.writeUTF(text);
+        out.writeInt(weight);
+    }
+
+    private static void collectLog(ConcurrentNavigableMap<String, LogEntry> log, String prefix, Map<String, Integer> weights) {
+        for (LogEntry entry : log.tailMap(prefix).values()) {
+            if (!entry.text.startsWith(prefix)) {
+                break;
+            }
+            // 已经有的值是基础权重，或者基础权重加上合并中日志的权重，基础权重只算一次
+            final Integer weight = weights.get(entry.text);
+            weights.put(entry.text, saturatedAdd(weight != null ? weight : entry.baseWeight, entry.delta));
+        }
+    }
+
+    /**
+     * 不成对的代理字符编码成UTF-8时会变成'?'，不同的词可能得到相同的key
+     */
+    private static boolean hasUnpairedSurrogate(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int saturatedAdd(int a, int b) {
+        final long sum = (long) a + b;
+        return sum > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) sum;
+    }
+
+    private static ConcurrentNavigableMap<String, LogEntry> newLogMap() {
+        return new ConcurrentSkipListMap<>(CODE_POINT_ORDER);
+    }
+
+    /**
+     * 查询看到的一致状态，替换整个对象来发布，日志map只在持有写锁时修改
+     */
+    private static final class Snapshot {
+        final PrefixIndex base;
+        /**
+         * 正在合并的日志，合并完成前仍然参与查询
+         */
+        final ConcurrentNavigableMap<String, LogEntry> merging;
+        /**
+         * 新追加的日志
+         */
+        final ConcurrentNavigableMap<String, LogEntry> active;
+
+        Snapshot(PrefixIndex base, ConcurrentNavigableMap<String, LogEntry> merging,
+                 ConcurrentNavigableMap<String, LogEntry> active) {
+            this.base = base;
+            this.merging = merging;
+            this.active = active;
+        }
+
+        /**
+         * 在已有记录上累加权重
+         */
+        LogEntry newLogEntry(String text, int weight) {
+            final LogEntry existing = active.get(text);
+            if (existing != null) {
+                return new LogEntry(text, existing.baseWeight, saturatedAdd(existing.delta, weight));
+            }
+            final LogEntry merged = merging.get(text);
+            final int baseWeight = merged != null ? merged.baseWeight : base.weightOf(text);
+            return new LogEntry(text, baseWeight, weight);
+        }
+    }
+
+    /**
+     * 等待写入日志文件的一条记录
+     */
+    private static final class LogRecord {
+        final long sequence;
+        final String text;
+        final int weight;
+
+        LogRecord(long sequence, String text, int weight) {
+            this.sequence = sequence;
+            this.text = text;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * 日志中的一个词，不可变，更新时整体替换
+     */
+    private static final class LogEntry {
+        final String text;
+        /**
+         * 追加时基础索引中的权重，查询时不用再查基础索引
+         */
+        final int baseWeight;
+        /**
+         * 日志中累加的权重
+         */
+        final int delta;
+
+        LogEntry(String text, int baseWeight, int delta) {
+            this.text = text;
+            this.baseWeight = baseWeight;
+            this.delta = delta;
+        }
+    }
+}
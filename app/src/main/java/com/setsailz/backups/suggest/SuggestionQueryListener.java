@@ -0,0 +1,33 @@
+package com.setsailz.backups.suggest;
+
+import android.os.CancellationSignal;
+
+import com.setsailz.backups.widgets.ClearEditText;
+
+import java.util.List;
+
+/**
+ * 用{@link SuggestionIndex}给{@link ClearEditText}提供联想词，查询在输入框的查询线程中执行，
+ * 只需要实现{@link #onQueryResult(String, List)}显示结果
+ */
+public abstract class SuggestionQueryListener implements ClearEditText.OnQueryListener<List<String>> {
+    private final SuggestionIndex mIndex;
+    private final int mLimit;
+
+    /**
+     * @param limit 最多返回多少个联想词
+     */
+    public SuggestionQueryListener(SuggestionIndex index, int limit) {
+        if (index == null || limit <= 0) {
+            throw new IllegalArgumentException("请传入正确的参数");
+        }
+        mIndex = index;
+        mLimit = limit;
+    }
+
+    @Override
+    public List<String> onQuery(String query, CancellationSignal signal) {
+        signal.throwIfCanceled();
+        return mIndex.lookup(query, mLimit);
+    }
+}
@@ -1,8 +1,17 @@
 package com.setsailz.backups.widgets;
 
 import android.content.Context;
+import android.content.res.ColorStateList;
 import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.support.v4.content.res.ResourcesCompat;
+import android.support.v4.graphics.drawable.DrawableCompat;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
@@ -11,8 +20,17 @@ import android.view.View;
 
 import com.setsailz.backups.R;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 /**
  * 带清空按钮的输入框，另外，drawable尺寸可配置
+ * 清空按钮不作为compound drawable，而是在onDraw中直接画在右边预留的padding里，
+ * 显示和隐藏只需要重绘，输入过程中不会触发重新布局。
+ * 设置{@link OnQueryListener}后作为过滤框使用：输入停顿后在后台线程查询，新的查询会取消还没完成的查询，
+ * 结果回到主线程，并且只交付最新一次查询的结果；输入被清空时不经过后台，立即交付空查询
  */
 public class ClearEditText extends android.support.v7.widget.AppCompatEditText implements View.OnFocusChangeListener, TextWatcher {
     /**
@@ -24,6 +42,64 @@ public class ClearEditText extends android.support.v7.widget.AppCompatEditText i
      */
     private boolean hasFoucs;
 
+    /**
+     * 清空按钮当前是否显示
+     */
+    private boolean mClearIconVisible;
+
+    /**
+     * 为清空按钮在右边额外预留的padding，等于按钮宽度加上drawablePadding
+     */
+    private int mClearIconReservedWidth;
+
+    /**
+     * 用户设置的右边padding，不含预留的宽度，实际的右边padding为它加上{@link #mClearIconReservedWidth}
+     */
+    private int mUserPaddingRight;
+
+    /**
+     * 输入法批量编辑的嵌套层数，批量编辑中只记录需要刷新，结束时统一刷新一次
+     */
+    private int mBatchEditNesting;
+    private boolean mClearIconUpdatePending;
+
+    /**
+     * 默认的查询防抖时间
+     */
+    private static final long DEFAULT_QUERY_DEBOUNCE_MS = 300;
+
+    /**
+     * 主线程handler，防抖和交付结果都通过它，不依赖view是否attach
+     */
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * 没有设置executor时所有输入框共用的查询线程
+     */
+    private static ExecutorService sDefaultQueryExecutor;
+
+    private OnQueryListener<?> mOnQueryListener;
+    private Executor mQueryExecutor;
+    private long mQueryDebounceMs = DEFAULT_QUERY_DEBOUNCE_MS;
+
+    /**
+     * 最近一次发起的查询，内容没变的编辑不会重复查询
+     */
+    private String mLastQuery;
+
+    /**
+     * 每发起一次查询加一，只在主线程读写，回到主线程时不是最新的结果直接丢弃
+     */
+    private int mQueryGeneration;
+    private CancellationSignal mQuerySignal;
+
+    private final Runnable mDispatchQueryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dispatchQuery();
+        }
+    };
+
     public ClearEditText(Context context) {
         this(context, null);
     }
@@ -42,9 +118,18 @@ public class ClearEditText extends android.support.v7.widget.AppCompatEditText i
         /**
          * 取得自定义属性值
          */
+        final int drawableWidth;
+        final int drawableHeight;
         TypedArray ta = context.obtainStyledAttributes(attrs, R.styleable.ClearEditText);
-        int drawableWidth = ta.getDimensionPixelSize(R.styleable.ClearEditText_drawableWidth, -1);
-        int drawableHeight = ta.getDimensionPixelSize(R.styleable.ClearEditText_drawableHeight, -1);
+        try {
+            drawableWidth = ta.getDimensionPixelSize(R.styleable.ClearEditText_drawableWidth, -1);
+            drawableHeight = ta.getDimensionPixelSize(R.styleable.ClearEditText_drawableHeight, -1);
+        } finally {
+            /**
+             * 回收ta
+             */
+            ta.recycle();
+        }
         if (drawableWidth != -1 && drawableHeight != -1) {
             /**
              * 取得TextView的Drawable(左上右下四个组成的数组值)
@@ -59,25 +144,26 @@ public class ClearEditText extends android.support.v7.widget.AppCompatEditText i
             /**
              * 设置宽高
              */
-            if (textDrawable != null && drawableWidth != -1 && drawableHeight != -1) {
+            if (textDrawable != null) {
                 textDrawable.setBounds(0, 0, drawableWidth, drawableHeight);
             }
             /**
              * 设置给TextView
              */
             setCompoundDrawables(drawables[0], drawables[1], drawables[2], drawables[3]);
-            /**
-             * 回收ta
-             */
-            ta.recycle();
         }
 
         // 获取EditText的DrawableRight,假如没有设置我们就使用默认的图片
-        mClearDrawable = getCompoundDrawables()[2];
+        Drawable[] compoundDrawables = getCompoundDrawables();
+        mClearDrawable = compoundDrawables[2];
+        if (mClearDrawable != null) {
+            // 改为自己绘制，不再作为compound drawable
+            setCompoundDrawables(compoundDrawables[0], compoundDrawables[1], null, compoundDrawables[3]);
+        }
         if (mClearDrawable == null) {
             // throw new
             // NullPointerException("You can add drawableRight attribute in XML");
-            mClearDrawable = getResources().getDrawable(R.drawable.icon_input_clear);
+            mClearDrawable = ResourcesCompat.getDrawable(getResources(), R.drawable.icon_input_clear, context.getTheme());
         }
 
         if (drawableWidth != -1 && drawableHeight != -1) {
@@ -86,6 +172,9 @@ public class ClearEditText extends android.support.v7.widget.AppCompatEditText i
             mClearDrawable.setBounds(0, 0, mClearDrawable.getIntrinsicWidth(), mClearDrawable.getIntrinsicHeight());
         }
 
+        mClearIconReservedWidth = mClearDrawable.getBounds().width() + getCompoundDrawablePadding();
+        setPaddingInternal(getPaddingLeft(), getPaddingTop(), getPaddingRight(), getPaddingBottom());
+
         // 默认设置隐藏图标
         setClearIconVisible(false);
         // 设置焦点改变的监听
@@ -94,6 +183,16 @@ public class ClearEditText extends android.support.v7.widget.AppCompatEditText i
         addTextChangedListener(this);
     }
 
+    /**
+     * 给清空图标着色，着色前先mutate，不影响其他使用同一个图标资源的输入框
+     */
+    public ClearEditText setClearIconTint(ColorStateList tint) {
+        mClearDrawable = mClearDrawable.mutate();
+        DrawableCompat.setTintList(mClearDrawable, tint);
+        invalidate();
+        return this;
+    }
+
     /**
      * 因为我们不能直接给EditText设置点击事件，所以我们用记住我们按下的位置来模拟点击事件 当我们按下的位置 在 EditText的宽度 -
      * 图标到控件右边的间距 - 图标的宽度 和 EditText的宽度 - 图标到控件右边的间距之间我们就算点击了图标，竖直方向就没有考虑
@@ -101,9 +200,9 @@ public class ClearEditText extends android.support.v7.widget.AppCompatEditText i
     @Override
     public boolean onTouchEvent(MotionEvent event) {
         if (event.getAction() == MotionEvent.ACTION_UP) {
-            if (getCompoundDrawables()[2] != null) {
-
-                boolean touchable = event.getX() > (getWidth() - getTotalPaddingRight()) && (event.getX() < ((getWidth() - getPaddingRight())));
+            if (mClearIconVisible) {
+                int clearIconRight = getWidth() - mUserPaddingRight;
+                boolean touchable = event.getX() > (clearIconRight - mClearDrawable.getBounds().width()) && (event.getX() < clearIconRight);
 
                 if (touchable) {
                     this.setText("");
@@ -114,6 +213,92 @@ public class ClearEditText extends android.support.v7.widget.AppCompatEditText i
         return super.onTouchEvent(event);
     }
 
+    /**
+     * 外部设置padding时保留清空按钮的位置
+     */
+    @Override
+    public void setPadding(int left, int top, int right, int bottom) {
+        setPaddingInternal(left, top, right, bottom);
+    }
+
+    /**
+     * 清空按钮固定画在右边，相对padding按当前的布局方向换算成左右padding
+     */
+    @Override
+    public void setPaddingRelative(int start, int top, int end, int bottom) {
+        if (getLayoutDirection() == LAYOUT_DIRECTION_RTL) {
+            setPaddingInternal(end, top, start, bottom);
+        } else {
+            setPaddingInternal(start, top, end, bottom);
+        }
+    }
+
+    /**
+     * 带padding的背景会把padding换成背景自己的，这时把背景的右边padding当作用户的，重新加上预留的宽度
+     */
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setBackgroundDrawable(Drawable background) {
+        super.setBackgroundDrawable(background);
+        // 父类构造方法里设置背景时还没有初始化，由init统一预留
+        if (mClearDrawable != null && background != null && background.getPadding(new Rect())) {
+            setPaddingInternal(getPaddingLeft(), getPaddingTop(), getPaddingRight(), getPaddingBottom());
+        }
+    }
+
+    /**
+     * 所有修改padding的入口都经过这里，记下用户的右边padding，实际设置时加上预留的宽度
+     */
+    private void setPaddingInternal(int left, int top, int right, int bottom) {
+        mUserPaddingRight = right;
+        super.setPadding(left, top, right + mClearIconReservedWidth, bottom);
+    }
+
+    /**
+     * 用户设置的右边padding，不含为清空按钮预留的宽度。
+     * {@link #getPaddingRight()}返回实际生效的padding，包含预留的宽度，
+     * 读出来再传回{@link #setPadding}时应该用这个方法，否则会越加越大
+     */
+    public int getUserPaddingRight() {
+        return mUserPaddingRight;
+    }
+
+    /**
+     * 在预留的位置上画清空按钮，垂直方向和compound drawable一样居中
+     */
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (!mClearIconVisible) {
+            return;
+        }
+
+        final int iconWidth = mClearDrawable.getBounds().width();
+        final int iconHeight = mClearDrawable.getBounds().height();
+        final int vspace = getHeight() - getCompoundPaddingBottom() - getCompoundPaddingTop();
+        final int left = getScrollX() + getWidth() - mUserPaddingRight - iconWidth;
+        final int top = getScrollY() + getCompoundPaddingTop() + (vspace - iconHeight) / 2;
+        canvas.save();
+        canvas.translate(left, top);
+        mClearDrawable.draw(canvas);
+        canvas.restore();
+    }
+
+    @Override
+    public void onBeginBatchEdit() {
+        super.onBeginBatchEdit();
+        mBatchEditNesting++;
+    }
+
+    @Override
+    public void onEndBatchEdit() {
+        super.onEndBatchEdit();
+        if (mBatchEditNesting > 0 && --mBatchEditNesting == 0 && mClearIconUpdatePending) {
+            mClearIconUpdatePending = false;
+            updateClearIcon(getText());
+        }
+    }
+
     /**
      * 当ClearEditText焦点发生变化的时候，判断里面字符串长度设置清除图标的显示与隐藏
      */
@@ -128,13 +313,16 @@ public class ClearEditText extends android.support.v7.widget.AppCompatEditText i
     }
 
     /**
-     * 设置清除图标的显示与隐藏，调用setCompoundDrawables为EditText绘制上去
+     * 设置清除图标的显示与隐藏，只在状态变化时重绘，不重新布局
      *
      * @param visible
      */
     protected void setClearIconVisible(boolean visible) {
-        Drawable right = visible ? mClearDrawable : null;
-        setCompoundDrawables(getCompoundDrawables()[0], getCompoundDrawables()[1], right, getCompoundDrawables()[3]);
+        if (mClearIconVisible == visible) {
+            return;
+        }
+        mClearIconVisible = visible;
+        invalidate();
     }
 
     /**
@@ -142,11 +330,163 @@ public class ClearEditText extends android.support.v7.widget.AppCompatEditText i
      */
     @Override
     public void onTextChanged(CharSequence s, int start, int count, int after) {
+        if (mBatchEditNesting > 0) {
+            // 输入法批量编辑中，结束时统一处理
+            mClearIconUpdatePending = true;
+            return;
+        }
+        updateClearIcon(s);
+    }
+
+    /**
+     * 只在空和非空之间切换时才会改变按钮状态
+     */
+    private void updateClearIcon(CharSequence s) {
         if (hasFoucs) {
             setClearIconVisible(s.length() > 0);
         }
     }
 
+    /**
+     * 设置查询回调，传null关闭查询并取消进行中的查询
+     */
+    public <T> ClearEditText setOnQueryListener(OnQueryListener<T> listener) {
+        cancelQuery();
+        mOnQueryListener = listener;
+        return this;
+    }
+
+    /**
+     * 设置防抖时间，输入停顿超过这个时间才发起查询，期间的多次编辑合并成一次
+     *
+     * @param debounceMs 毫秒，0表示每次编辑都立即查询
+     */
+    public ClearEditText setQueryDebounce(long debounceMs) {
+        if (debounceMs < 0) {
+            throw new IllegalArgumentException("请传入正确的参数");
+        }
+        mQueryDebounceMs = debounceMs;
+        return this;
+    }
+
+    /**
+     * 设置执行查询的线程池，默认所有输入框共用一个后台线程
+     */
+    public ClearEditText setQueryExecutor(Executor executor) {
+        mQueryExecutor = executor;
+        return this;
+    }
+
+    /**
+     * 取消等待中和进行中的查询，已经在主线程排队的结果也不再交付
+     */
+    public void cancelQuery() {
+        sMainHandler.removeCallbacks(mDispatchQueryRunnable);
+        if (mQuerySignal != null) {
+            mQuerySignal.cancel();
+            mQuerySignal = null;
+        }
+        mQueryGeneration++;
+        mLastQuery = null;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        // 不再显示，结果没有意义，同时避免主线程handler和后台任务持有view
+        cancelQuery();
+    }
+
+    private void scheduleQuery() {
+        if (mOnQueryListener == null) {
+            return;
+        }
+        sMainHandler.removeCallbacks(mDispatchQueryRunnable);
+        if (getText().length() == 0 || mQueryDebounceMs == 0) {
+            // 清空（包括点击清空按钮）不需要等待
+            dispatchQuery();
+        } else {
+            sMainHandler.postDelayed(mDispatchQueryRunnable, mQueryDebounceMs);
+        }
+    }
+
+    private void dispatchQuery() {
+        if (mOnQueryListener == null) {
+            return;
+        }
+        final String query = getText().toString();
+        if (query.equals(mLastQuery)) {
+            return;
+        }
+        if (mQuerySignal != null) {
+            mQuerySignal.cancel();
+            mQuerySignal = null;
+        }
+        mLastQuery = query;
+        final int generation = ++mQueryGeneration;
+        if (query.length() == 0) {
+            deliverEmptyQuery(mOnQueryListener);
+        } else {
+            mQuerySignal = new CancellationSignal();
+            submitQuery(mOnQueryListener, query, generation, mQuerySignal);
+        }
+    }
+
+    private <T> void deliverEmptyQuery(OnQueryListener<T> listener) {
+        listener.onQueryResult("", null);
+    }
+
+    private <T> void submitQuery(final OnQueryListener<T> listener, final String query, final int generation,
+                                 final CancellationSignal signal) {
+        getQueryExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (signal.isCanceled()) {
+                    return;
+                }
+                final T result;
+                try {
+                    result = listener.onQuery(query, signal);
+                } catch (OperationCanceledException e) {
+                    return;
+                }
+                if (signal.isCanceled()) {
+                    return;
+                }
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // 期间发起了新的查询或者被取消，丢弃
+                        if (generation != mQueryGeneration || listener != mOnQueryListener) {
+                            return;
+                        }
+                        mQuerySignal = null;
+                        listener.onQueryResult(query, result);
+                    }
+                });
+            }
+        });
+    }
+
+    private Executor getQueryExecutor() {
+        if (mQueryExecutor != null) {
+            return mQueryExecutor;
+        }
+        synchronized (ClearEditText.class) {
+            if (sDefaultQueryExecutor == null) {
+                sDefaultQueryExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ClearEditText-query");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return sDefaultQueryExecutor;
+        }
+    }
+
     @Override
     public void beforeTextChanged(CharSequence s, int start, int count, int after) {
 
@@ -154,7 +494,31 @@ public class ClearEditText extends android.support.v7.widget.AppCompatEditText i
 
     @Override
     public void afterTextChanged(Editable s) {
+        scheduleQuery();
+    }
 
+    /**
+     * 输入框的查询回调
+     *
+     * @param <T> 查询结果的类型
+     */
+    public interface OnQueryListener<T> {
+        /**
+         * 在后台线程调用，耗时的过滤放在这里。
+         * 有新的查询时signal会被取消，长时间的查询应该定期检查{@link CancellationSignal#isCanceled()}，
+         * 或者调用{@link CancellationSignal#throwIfCanceled()}提前结束
+         *
+         * @param query 不为空的查询内容
+         */
+        T onQuery(String query, CancellationSignal signal);
+
+        /**
+         * 在主线程调用，只会收到最新一次查询的结果，顺序和输入顺序一致
+         *
+         * @param query  查询内容，输入被清空时为""
+         * @param result 查询结果，query为""时不经过{@link #onQuery}，result为null
+         */
+        void onQueryResult(String query, T result);
     }
 
 }
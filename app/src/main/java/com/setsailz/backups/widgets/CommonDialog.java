@@ -14,6 +14,7 @@ import android.widget.Button;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import com.setsailz.backups.LeakWatcher;
 import com.setsailz.backups.R;
 
 /**
@@ -26,10 +27,12 @@ public class CommonDialog extends Dialog {
 
     public CommonDialog(Context context) {
         super(context);
+        LeakWatcher.watchOwned(this, context);
     }
 
     public CommonDialog(Context context, int theme) {
         super(context, theme);
+        LeakWatcher.watchOwned(this, context);
     }
 
     public static class Builder {
@@ -0,0 +1,81 @@
+package com.setsailz.backups.widgets;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 组合多个decoration，每帧只遍历一次child，把结果放在{@link DecorationChildTable}里给所有decoration使用，
+ * 每帧的开销只和可见child数有关，和decoration的数量无关。
+ * 实现了{@link TableDecoration}的decoration直接读表，其他decoration按原来的方式调用。
+ * 按添加顺序绘制，吸顶header应该最后添加，盖在分割线上面
+ */
+public class CompositeItemDecoration extends RecyclerView.ItemDecoration {
+    private final List<RecyclerView.ItemDecoration> mDecorations = new ArrayList<>();
+    private final DecorationChildTable mChildTable = new DecorationChildTable();
+    private final Rect mItemOffsets = new Rect();
+
+    public CompositeItemDecoration add(RecyclerView.ItemDecoration decoration) {
+        if (decoration == null || decoration == this) {
+            throw new IllegalArgumentException("请传入正确的参数");
+        }
+        mDecorations.add(decoration);
+        return this;
+    }
+
+    @Override
+    public void onDraw(Canvas c, RecyclerView parent, RecyclerView.State state) {
+        // onDraw和onDrawOver之间child不会变化，一帧只填一次表
+        mChildTable.fill(parent);
+        for (int i = 0; i < mDecorations.size(); i++) {
+            final RecyclerView.ItemDecoration decoration = mDecorations.get(i);
+            if (decoration instanceof TableDecoration) {
+                ((TableDecoration) decoration).onDraw(c, parent, state, mChildTable);
+            } else {
+                decoration.onDraw(c, parent, state);
+            }
+        }
+    }
+
+    @Override
+    public void onDrawOver(Canvas c, RecyclerView parent, RecyclerView.State state) {
+        for (int i = 0; i < mDecorations.size(); i++) {
+            final RecyclerView.ItemDecoration decoration = mDecorations.get(i);
+            if (decoration instanceof TableDecoration) {
+                ((TableDecoration) decoration).onDrawOver(c, parent, state, mChildTable);
+            } else {
+                decoration.onDrawOver(c, parent, state);
+            }
+        }
+        mChildTable.clear();
+    }
+
+    /**
+     * 所有decoration的偏移叠加
+     */
+    @Override
+    public void getItemOffsets(Rect outRect, View view, RecyclerView parent, RecyclerView.State state) {
+        outRect.setEmpty();
+        for (int i = 0; i < mDecorations.size(); i++) {
+            mItemOffsets.setEmpty();
+            mDecorations.get(i).getItemOffsets(mItemOffsets, view, parent, state);
+            outRect.left += mItemOffsets.left;
+            outRect.top += mItemOffsets.top;
+            outRect.right += mItemOffsets.right;
+            outRect.bottom += mItemOffsets.bottom;
+        }
+    }
+
+    /**
+     * 可以直接使用child表绘制的decoration
+     */
+    public interface TableDecoration {
+        void onDraw(Canvas c, RecyclerView parent, RecyclerView.State state, DecorationChildTable children);
+
+        void onDrawOver(Canvas c, RecyclerView parent, RecyclerView.State state, DecorationChildTable children);
+    }
+}
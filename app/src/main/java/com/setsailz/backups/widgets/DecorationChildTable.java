@@ -0,0 +1,137 @@
+package com.setsailz.backups.widgets;
+
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.StaggeredGridLayoutManager;
+import android.view.View;
+
+import java.util.Arrays;
+
+/**
+ * 每帧一次遍历RecyclerView的child，把view、LayoutParams、position和view type记在表里，
+ * 多个decoration共用这张表，不再各自遍历child和查询position。
+ * 数组跨帧复用，只在child数量超过容量时扩容
+ */
+public final class DecorationChildTable {
+    private static final int INIT_CAPACITY = 16;
+
+    private View[] mViews = new View[INIT_CAPACITY];
+    private RecyclerView.LayoutParams[] mLayoutParams = new RecyclerView.LayoutParams[INIT_CAPACITY];
+    private int[] mLayoutPositions = new int[INIT_CAPACITY];
+    private int[] mAdapterPositions = new int[INIT_CAPACITY];
+    private int[] mViewTypes = new int[INIT_CAPACITY];
+    private int mSize;
+    private int mFirstAdapterPosition = RecyclerView.NO_POSITION;
+
+    /**
+     * 本帧被盖住的区域：滚动方向上[0, mCoveredEnd)，比如吸顶header
+     */
+    private int mCoveredEnd;
+    private boolean mCoveredVertical = true;
+
+    /**
+     * 按绘制顺序记录parent当前所有的child
+     */
+    public void fill(RecyclerView parent) {
+        final int childCount = parent.getChildCount();
+        ensureCapacity(childCount);
+        final boolean staggered = parent.getLayoutManager() instanceof StaggeredGridLayoutManager;
+        int firstAdapterPosition = RecyclerView.NO_POSITION;
+        for (int i = 0; i < childCount; i++) {
+            final View child = parent.getChildAt(i);
+            final RecyclerView.LayoutParams layoutParams = (RecyclerView.LayoutParams) child.getLayoutParams();
+            final RecyclerView.ViewHolder holder = parent.getChildViewHolder(child);
+            final int adapterPosition = layoutParams.getViewAdapterPosition();
+            mViews[i] = child;
+            mLayoutParams[i] = layoutParams;
+            mLayoutPositions[i] = layoutParams.getViewLayoutPosition();
+            mAdapterPositions[i] = adapterPosition;
+            mViewTypes[i] = holder != null ? holder.getItemViewType() : RecyclerView.INVALID_TYPE;
+            // Linear和Grid的第一个child就是第一个item；瀑布流的child不按position排序，取最小的
+            if (i == 0 || (staggered && adapterPosition >= 0
+                    && (firstAdapterPosition < 0 || adapterPosition < firstAdapterPosition))) {
+                firstAdapterPosition = adapterPosition;
+            }
+        }
+        // 清掉上一帧多出来的引用
+        for (int i = childCount; i < mSize; i++) {
+            mViews[i] = null;
+            mLayoutParams[i] = null;
+        }
+        mSize = childCount;
+        mFirstAdapterPosition = firstAdapterPosition;
+        mCoveredEnd = 0;
+    }
+
+    /**
+     * 一帧画完之后清除对view的引用
+     */
+    public void clear() {
+        Arrays.fill(mViews, 0, mSize, null);
+        Arrays.fill(mLayoutParams, 0, mSize, null);
+        mSize = 0;
+        mFirstAdapterPosition = RecyclerView.NO_POSITION;
+        mCoveredEnd = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public View getView(int index) {
+        return mViews[index];
+    }
+
+    public RecyclerView.LayoutParams getLayoutParams(int index) {
+        return mLayoutParams[index];
+    }
+
+    public int getLayoutPosition(int index) {
+        return mLayoutPositions[index];
+    }
+
+    public int getAdapterPosition(int index) {
+        return mAdapterPositions[index];
+    }
+
+    public int getViewType(int index) {
+        return mViewTypes[index];
+    }
+
+    /**
+     * 第一个可见item的adapter position，没有child时为{@link RecyclerView#NO_POSITION}
+     */
+    public int getFirstAdapterPosition() {
+        return mFirstAdapterPosition;
+    }
+
+    /**
+     * 记录本帧滚动方向起始处被完全盖住的区域，在onDraw中设置，之后的onDrawOver可以跳过这部分
+     *
+     * @param vertical 纵向列表为true，盖住的是顶部，否则为左边
+     * @param end      盖住区域的结束位置，0表示没有
+     */
+    public void setCoveredEnd(boolean vertical, int end) {
+        mCoveredVertical = vertical;
+        mCoveredEnd = end;
+    }
+
+    public int getCoveredEnd() {
+        return mCoveredEnd;
+    }
+
+    public boolean isCoveredVertical() {
+        return mCoveredVertical;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (mViews.length >= capacity) {
+            return;
+        }
+        final int newCapacity = Math.max(capacity, mViews.length * 2);
+        mViews = Arrays.copyOf(mViews, newCapacity);
+        mLayoutParams = Arrays.copyOf(mLayoutParams, newCapacity);
+        mLayoutPositions = Arrays.copyOf(mLayoutPositions, newCapacity);
+        mAdapterPositions = Arrays.copyOf(mAdapterPositions, newCapacity);
+        mViewTypes = Arrays.copyOf(mViewTypes, newCapacity);
+    }
+}
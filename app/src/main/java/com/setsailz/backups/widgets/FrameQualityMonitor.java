@@ -0,0 +1,207 @@
+package com.setsailz.backups.widgets;
+
+import android.support.v7.widget.RecyclerView;
+import android.view.Choreographer;
+import android.view.Display;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 滚动时用Choreographer统计帧间隔，连续掉帧时降低decoration的绘制质量，连续流畅后逐级恢复，
+ * 列表停止滚动时直接恢复最高质量。
+ * 降级和恢复需要的连续帧数不同（滞后），避免在两个级别之间来回切换
+ */
+public class FrameQualityMonitor {
+    /**
+     * 最高质量
+     */
+    public static final int QUALITY_FULL = 0;
+    /**
+     * 关闭抗锯齿，吸顶header快照冻结，header自身的刷新要等恢复后才显示
+     */
+    public static final int QUALITY_REDUCED = 1;
+    /**
+     * 在{@link #QUALITY_REDUCED}的基础上，虚线分割线改为实线
+     */
+    public static final int QUALITY_MINIMAL = 2;
+
+    /**
+     * 帧间隔超过一帧时长的多少倍算掉帧
+     */
+    private static final float JANK_THRESHOLD = 1.5f;
+    private static final int DEFAULT_DEGRADE_FRAMES = 3;
+    private static final int DEFAULT_RECOVER_FRAMES = 60;
+    private static final float DEFAULT_REFRESH_RATE = 60f;
+
+    private final List<OnQualityChangeListener> mListeners = new ArrayList<>();
+
+    private RecyclerView mRecyclerView;
+    private int mQualityLevel = QUALITY_FULL;
+    private int mDegradeFrames = DEFAULT_DEGRADE_FRAMES;
+    private int mRecoverFrames = DEFAULT_RECOVER_FRAMES;
+
+    private boolean mMonitoring;
+    private long mLastFrameTimeNanos;
+    private long mJankIntervalNanos;
+    private int mJankFrameCount;
+    private int mSmoothFrameCount;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mMonitoring) {
+                return;
+            }
+            onFrame(frameTimeNanos);
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    private final RecyclerView.OnScrollListener mOnScrollListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+            if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                stopMonitoring();
+                setQualityLevel(QUALITY_FULL);
+            } else {
+                startMonitoring();
+            }
+        }
+    };
+
+    /**
+     * 在列表滚动时开始统计，需要在主线程调用
+     */
+    public void attachToRecyclerView(RecyclerView recyclerView) {
+        if (mRecyclerView == recyclerView) {
+            return;
+        }
+        detach();
+        mRecyclerView = recyclerView;
+        if (mRecyclerView != null) {
+            mRecyclerView.addOnScrollListener(mOnScrollListener);
+            if (mRecyclerView.getScrollState() != RecyclerView.SCROLL_STATE_IDLE) {
+                startMonitoring();
+            }
+        }
+    }
+
+    public void detach() {
+        stopMonitoring();
+        if (mRecyclerView != null) {
+            mRecyclerView.removeOnScrollListener(mOnScrollListener);
+            mRecyclerView = null;
+        }
+        setQualityLevel(QUALITY_FULL);
+    }
+
+    /**
+     * 设置滞后的帧数
+     *
+     * @param degradeFrames 连续掉帧多少帧降一级
+     * @param recoverFrames 连续流畅多少帧升一级
+     */
+    public FrameQualityMonitor setHysteresis(int degradeFrames, int recoverFrames) {
+        if (degradeFrames <= 0 || recoverFrames <= 0) {
+            throw new IllegalArgumentException("请传入正确的参数");
+        }
+        mDegradeFrames = degradeFrames;
+        mRecoverFrames = recoverFrames;
+        return this;
+    }
+
+    public FrameQualityMonitor addOnQualityChangeListener(OnQualityChangeListener listener) {
+        if (listener != null && !mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+        return this;
+    }
+
+    public void removeOnQualityChangeListener(OnQualityChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * 当前的绘制质量，decoration每帧读取
+     *
+     * @return {@link #QUALITY_FULL}、{@link #QUALITY_REDUCED}或{@link #QUALITY_MINIMAL}
+     */
+    public int getQualityLevel() {
+        return mQualityLevel;
+    }
+
+    private void startMonitoring() {
+        if (mMonitoring) {
+            return;
+        }
+        mMonitoring = true;
+        mLastFrameTimeNanos = 0;
+        mJankFrameCount = 0;
+        mSmoothFrameCount = 0;
+        mJankIntervalNanos = (long) (1000000000L / getRefreshRate() * JANK_THRESHOLD);
+        Choreographer.getInstance().postFrameCallback(mFrameCallback);
+    }
+
+    private void stopMonitoring() {
+        if (!mMonitoring) {
+            return;
+        }
+        mMonitoring = false;
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+    }
+
+    private void onFrame(long frameTimeNanos) {
+        final long lastFrameTimeNanos = mLastFrameTimeNanos;
+        mLastFrameTimeNanos = frameTimeNanos;
+        if (lastFrameTimeNanos == 0) {
+            return;
+        }
+
+        if (frameTimeNanos - lastFrameTimeNanos > mJankIntervalNanos) {
+            mSmoothFrameCount = 0;
+            if (++mJankFrameCount >= mDegradeFrames) {
+                mJankFrameCount = 0;
+                if (mQualityLevel < QUALITY_MINIMAL) {
+                    setQualityLevel(mQualityLevel + 1);
+                }
+            }
+        } else {
+            mJankFrameCount = 0;
+            if (++mSmoothFrameCount >= mRecoverFrames) {
+                mSmoothFrameCount = 0;
+                if (mQualityLevel > QUALITY_FULL) {
+                    setQualityLevel(mQualityLevel - 1);
+                }
+            }
+        }
+    }
+
+    private void setQualityLevel(int qualityLevel) {
+        if (mQualityLevel == qualityLevel) {
+            return;
+        }
+        final int oldLevel = mQualityLevel;
+        mQualityLevel = qualityLevel;
+        if (mRecyclerView != null) {
+            // 停止滚动后不会再有新的帧，需要主动重绘一次才能恢复
+            mRecyclerView.invalidate();
+        }
+        for (int i = 0; i < mListeners.size(); i++) {
+            mListeners.get(i).onQualityChanged(oldLevel, qualityLevel);
+        }
+    }
+
+    private float getRefreshRate() {
+        Display display = mRecyclerView != null ? mRecyclerView.getDisplay() : null;
+        float refreshRate = display != null ? display.getRefreshRate() : 0;
+        return refreshRate > 0 ? refreshRate : DEFAULT_REFRESH_RATE;
+    }
+
+    /**
+     * 绘制质量变化的回调，可以用来统计
+     */
+    public interface OnQualityChangeListener {
+        void onQualityChanged(int oldLevel, int newLevel);
+    }
+}
@@ -1,148 +1,868 @@
 package com.setsailz.backups.widgets;
 
 import android.graphics.Canvas;
-import android.graphics.Rect;
-import android.graphics.Region;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.support.annotation.ColorInt;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.StaggeredGridLayoutManager;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.view.View;
 import android.view.ViewGroup;
 
-public class PinnedHeaderDecoration extends RecyclerView.ItemDecoration {
-    private int mHeaderPosition;
-    private int mPinnedHeaderTop;
+import com.setsailz.backups.LeakWatcher;
+
+import java.util.Arrays;
+
+/**
+ * 吸顶header，支持多级header叠加吸顶
+ * 每种header类型注册时指定级别，0为最外层。每一级都会被同级或更外层的下一个header推出去，
+ * 每一级有自己的position索引，每帧的查找都是二分查找。
+ * 支持纵向和横向（header固定在左边）的LinearLayoutManager、GridLayoutManager和StaggeredGridLayoutManager
+ */
+public class PinnedHeaderDecoration extends RecyclerView.ItemDecoration implements CompositeItemDecoration.TableDecoration {
+    /**
+     * 叠加吸顶的header最下边（横向列表为最右边）的位置
+     */
+    private int mPinnedHeaderEnd;
+
+    /**
+     * 当前布局是否纵向滚动
+     */
+    private boolean mVertical = true;
 
     private boolean mIsAdapterDataChanged;
 
-    private Rect mClipBounds;
-    private View mPinnedHeaderView;
+    /**
+     * header背景透明时挡住下面item的画笔
+     */
+    private final Paint mCoverPaint = new Paint();
+    private int mCoverColor;
+    private boolean mHasCoverColor;
+
+    /**
+     * 没有遮挡色时，onDraw里把吸顶区域从裁剪区域去掉之前的save count，onDrawOver画header之前恢复，-1表示本帧没有裁剪
+     */
+    private int mClipSaveCount = -1;
     private RecyclerView.Adapter mAdapter;
 
+    private RecyclerView mParent;
+
+    /**
+     * header的ViewHolder复用池
+     */
+    private final PinnedHeaderPool mHeaderPool = new PinnedHeaderPool();
+
+    /**
+     * 每一级吸顶header的状态，下标为级别
+     */
+    private PinnedLevel[] mLevels = new PinnedLevel[0];
+
+    private int mSnapshotMaxBytes = PinnedHeaderSnapshot.DEFAULT_MAX_BYTES;
+
+    /**
+     * 所有级别的position索引是否有效，adapter整体变化时失效，在主线程空闲时重建
+     */
+    private boolean mSectionIndexValid;
+
+    /**
+     * 索引是否是当前adapter建立的。失效但可用时先继续使用旧索引，等空闲时重建；
+     * 不可用（第一次绑定、更换adapter或者header类型）时只能在绘制中直接建立
+     */
+    private boolean mSectionIndexUsable;
+    private boolean mSectionRebuildScheduled;
+
+    /**
+     * 是否在主线程空闲时提前绑定下一个（或上一个）header
+     */
+    private boolean mPrebindEnabled;
+    private boolean mPrebindScheduled;
+    private boolean mScrollingForward = true;
+    private int mLastFirstVisiblePosition = RecyclerView.NO_POSITION;
+
+    /**
+     * 切换header时提前绑定的ViewHolder命中/未命中的次数
+     */
+    private int mPrebindHitCount;
+    private int mPrebindMissCount;
+    private OnPrebindListener mOnPrebindListener;
+
+    private PinnedHeaderContentProvider mContentProvider;
+
+    /**
+     * 掉帧时冻结header快照，header自身的刷新暂不重新录制，为null时不冻结
+     */
+    private FrameQualityMonitor mQualityMonitor;
+
+    private final View.OnAttachStateChangeListener mAttachStateListener = new View.OnAttachStateChangeListener() {
+        @Override
+        public void onViewAttachedToWindow(View v) {
+        }
+
+        @Override
+        public void onViewDetachedFromWindow(View v) {
+            release();
+        }
+    };
+
+    private final MessageQueue.IdleHandler mPrebindIdleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            mPrebindScheduled = false;
+            prebindPinnedHeaders();
+            return false;
+        }
+    };
+
+    private final MessageQueue.IdleHandler mSectionRebuildIdleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            mSectionRebuildScheduled = false;
+            if (!mSectionIndexValid && mParent != null) {
+                ensureSectionIndex();
+                mParent.invalidate();
+            }
+            return false;
+        }
+    };
+
     private final SparseArray<PinnedHeaderCreator> mTypePinnedHeaderFactories = new SparseArray<>();
+    private final SparseIntArray mTypePinnedHeaderLevels = new SparseIntArray();
     private final RecyclerView.AdapterDataObserver mAdapterDataObserver = new RecyclerView.AdapterDataObserver() {
         @Override
         public void onChanged() {
             mIsAdapterDataChanged = true;
+            mSectionIndexValid = false;
+        }
+
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount) {
+            onAdapterRangeChanged(positionStart, positionStart + itemCount, 0);
+            refreshSections(positionStart, itemCount);
+        }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            onAdapterRangeChanged(positionStart, positionStart, itemCount);
+            for (PinnedLevel level : mLevels) {
+                level.sectionIndex.insertRange(positionStart, itemCount);
+            }
+            refreshSections(positionStart, itemCount);
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            onAdapterRangeChanged(positionStart, positionStart + itemCount, -itemCount);
+            for (PinnedLevel level : mLevels) {
+                level.sectionIndex.removeRange(positionStart, itemCount);
+            }
+        }
+
+        @Override
+        public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+            // 两个位置之间的item都平移了一位
+            onAdapterRangeChanged(Math.min(fromPosition, toPosition), Math.max(fromPosition, toPosition) + itemCount, 0);
+            for (PinnedLevel level : mLevels) {
+                level.sectionIndex.removeRange(fromPosition, itemCount);
+                level.sectionIndex.insertRange(toPosition, itemCount);
+            }
+            refreshSections(toPosition, itemCount);
         }
     };
 
     public PinnedHeaderDecoration() {
-        this.mHeaderPosition = -1;
     }
 
     @Override
     public void onDraw(Canvas c, RecyclerView parent, RecyclerView.State state) {
-        createPinnedHeader(parent);
+        RecyclerView.LayoutManager layoutManager = parent.getLayoutManager();
+        createPinnedHeader(parent, layoutManager != null && layoutManager.getChildCount() > 0
+                ? findFirstAdapterPosition(layoutManager) : RecyclerView.NO_POSITION);
+        clipOutPinnedArea(c, parent);
+    }
 
-        if (mPinnedHeaderView != null) {
-            int headerEndAt = mPinnedHeaderView.getTop() + mPinnedHeaderView.getHeight();
-            View v = parent.findChildViewUnder(c.getWidth() / 2, headerEndAt + 1);
+    @Override
+    public void onDraw(Canvas c, RecyclerView parent, RecyclerView.State state, DecorationChildTable children) {
+        createPinnedHeader(parent, children.getFirstAdapterPosition());
+        clipOutPinnedArea(c, parent);
+        // 吸顶区域下面的item会被header、遮挡色或者裁剪盖住，告诉之后绘制的decoration
+        children.setCoveredEnd(mVertical, mPinnedHeaderEnd);
+    }
 
-            if (isPinnedView(parent, v)) {
-                mPinnedHeaderTop = v.getTop() - mPinnedHeaderView.getHeight();
-            } else {
-                mPinnedHeaderTop = 0;
+    /**
+     * header直接盖在内容上面画，不修改RecyclerView的clip。
+     * header背景不透明时直接挡住下面的item，否则先用背景色把吸顶区域盖住；
+     * 没有可用的背景色时，onDraw里已经把吸顶区域从item的裁剪区域中去掉，这里恢复之后再画header
+     */
+    @Override
+    public void onDrawOver(Canvas c, RecyclerView parent, RecyclerView.State state, DecorationChildTable children) {
+        onDrawOver(c, parent, state);
+    }
+
+    @Override
+    public void onDrawOver(Canvas c, RecyclerView parent, RecyclerView.State state) {
+        final boolean clipped = mClipSaveCount >= 0;
+        if (clipped) {
+            c.restoreToCount(mClipSaveCount);
+            mClipSaveCount = -1;
+        }
+        if (mPinnedHeaderEnd > 0) {
+            if (!clipped && !isPinnedHeaderOpaque(parent) && resolveCoverColor(parent)) {
+                if (mVertical) {
+                    c.drawRect(0, 0, parent.getWidth(), mPinnedHeaderEnd, mCoverPaint);
+                } else {
+                    c.drawRect(0, 0, mPinnedHeaderEnd, parent.getHeight(), mCoverPaint);
+                }
             }
 
-            mClipBounds = c.getClipBounds();
-            mClipBounds.top = mPinnedHeaderTop + mPinnedHeaderView.getHeight();
-            c.clipRect(mClipBounds);
+            final boolean frozen = mQualityMonitor != null
+                    && mQualityMonitor.getQualityLevel() >= FrameQualityMonitor.QUALITY_REDUCED;
+            // 从里层往外层画，被推走时外层header盖在里层上面
+            for (int i = mLevels.length - 1; i >= 0; i--) {
+                PinnedLevel level = mLevels[i];
+                if (level.headerView != null) {
+                    level.snapshot.setFrozen(frozen);
+                    c.save();
+                    if (mVertical) {
+                        c.translate(0, level.offset);
+                    } else {
+                        c.translate(level.offset, 0);
+                    }
+                    level.snapshot.draw(c, level.headerView);
+                    c.restore();
+                }
+            }
         }
     }
 
-    @Override
-    public void onDrawOver(Canvas c, RecyclerView parent, RecyclerView.State state) {
-        if (mPinnedHeaderView != null) {
-            c.save();
+    /**
+     * 吸顶header在滚动方向上盖住的范围[0, end)，没有吸顶header时为0。
+     * 同一帧中onDraw之后有效，不在{@link CompositeItemDecoration}中使用时，分割线等decoration用它跳过被盖住的item
+     */
+    public int getPinnedHeaderEnd() {
+        return mPinnedHeaderEnd;
+    }
 
-            mClipBounds.top = 0;
-            c.clipRect(mClipBounds, Region.Op.UNION);
-            c.translate(0, mPinnedHeaderTop);
-            mPinnedHeaderView.draw(c);
+    /**
+     * 当前布局是否纵向滚动，纵向时header盖住顶部，否则盖住左边
+     */
+    public boolean isVerticalLayout() {
+        return mVertical;
+    }
 
-            c.restore();
+    /**
+     * header不能完全挡住下面的item、又没有遮挡色时，在画item之前把吸顶区域从裁剪区域中去掉，
+     * 吸顶区域下面的item不会画出来，也就不会从header透出来
+     */
+    private void clipOutPinnedArea(Canvas c, RecyclerView parent) {
+        mClipSaveCount = -1;
+        if (mPinnedHeaderEnd <= 0 || isPinnedHeaderOpaque(parent) || resolveCoverColor(parent)) {
+            return;
+        }
+        mClipSaveCount = c.save();
+        if (mVertical) {
+            c.clipRect(0, mPinnedHeaderEnd, parent.getWidth(), parent.getHeight());
+        } else {
+            c.clipRect(mPinnedHeaderEnd, 0, parent.getWidth(), parent.getHeight());
         }
     }
 
-    private void createPinnedHeader(RecyclerView parent) {
+    /**
+     * 每一级header都有不透明背景并且占满列表的宽度（横向列表为高度）时，不需要额外遮挡
+     */
+    private boolean isPinnedHeaderOpaque(RecyclerView parent) {
+        for (PinnedLevel level : mLevels) {
+            View headerView = level.headerView;
+            if (headerView == null) {
+                continue;
+            }
+            Drawable background = headerView.getBackground();
+            if (background == null || background.getOpacity() != PixelFormat.OPAQUE) {
+                return false;
+            }
+            if (mVertical ? headerView.getWidth() < parent.getWidth() : headerView.getHeight() < parent.getHeight()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 遮挡用的颜色：设置过的颜色，否则使用RecyclerView的纯色背景
+     *
+     * @return 是否有可用的颜色
+     */
+    private boolean resolveCoverColor(RecyclerView parent) {
+        if (mHasCoverColor) {
+            mCoverPaint.setColor(mCoverColor);
+            return true;
+        }
+        Drawable background = parent.getBackground();
+        if (background instanceof ColorDrawable) {
+            mCoverPaint.setColor(((ColorDrawable) background).getColor());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * header背景透明时，用来挡住吸顶区域下面item的颜色，默认使用RecyclerView的纯色背景。
+     * 都没有时改为在画item时裁掉吸顶区域，吸顶区域里露出RecyclerView自己的背景（比如渐变或图片）
+     */
+    public void setPinnedHeaderBackgroundColor(@ColorInt int color) {
+        mCoverColor = color;
+        mHasCoverColor = true;
+    }
+
+    /**
+     * @param firstVisiblePosition 第一个可见item的adapter position，没有child时为{@link RecyclerView#NO_POSITION}
+     */
+    private void createPinnedHeader(RecyclerView parent, int firstVisiblePosition) {
         updatePinnedHeader(parent);
+        PinnedHeaderSnapshot.watchTrimMemory(parent.getContext());
 
         RecyclerView.LayoutManager layoutManager = parent.getLayoutManager();
-        if (layoutManager == null || layoutManager.getChildCount() <= 0) {
+        if (mAdapter == null || layoutManager == null || layoutManager.getChildCount() <= 0) {
+            mPinnedHeaderEnd = 0;
             return;
         }
-        int firstVisiblePosition = ((RecyclerView.LayoutParams) layoutManager.getChildAt(0).getLayoutParams()).getViewAdapterPosition();
-        int headerPosition = findPinnedHeaderPosition(parent, firstVisiblePosition);
+        mVertical = isVertical(layoutManager);
+        if (firstVisiblePosition < 0) {
+            // 移除动画中第一个child已经没有adapter position，改用第一个还有position的child
+            firstVisiblePosition = findFirstAdapterPosition(layoutManager);
+        }
+        if (firstVisiblePosition < 0 || firstVisiblePosition >= mAdapter.getItemCount()) {
+            // 暂时找不到第一个可见item，保留上一帧的header和位置，不让它闪一下
+            return;
+        }
+        if (mSectionIndexUsable) {
+            scheduleSectionRebuild();
+        } else {
+            ensureSectionIndex();
+        }
 
-        if (headerPosition >= 0 && mHeaderPosition != headerPosition) {
-            mHeaderPosition = headerPosition;
-            int viewType = mAdapter.getItemViewType(headerPosition);
+        // 里层header必须在外层header之后，否则属于上一个外层section，不再吸顶
+        int ancestorPosition = -1;
+        for (PinnedLevel level : mLevels) {
+            int headerPosition = level.sectionIndex.floor(firstVisiblePosition);
+            if (headerPosition < ancestorPosition) {
+                headerPosition = -1;
+            }
+            if (!mSectionIndexValid && headerPosition >= 0 && !isPinnedPosition(parent, headerPosition)) {
+                // 旧索引里的position已经不是header，保持上一帧的header，等索引重建
+                if (level.headerPosition >= 0) {
+                    ancestorPosition = level.headerPosition;
+                }
+                continue;
+            }
+            bindPinnedHeader(parent, level, headerPosition);
+            if (headerPosition >= 0) {
+                ancestorPosition = headerPosition;
+            }
+        }
 
-            RecyclerView.ViewHolder pinnedViewHolder = mAdapter.createViewHolder(parent, viewType);
-            mAdapter.bindViewHolder(pinnedViewHolder, headerPosition);
-            mPinnedHeaderView = pinnedViewHolder.itemView;
+        if (mPrebindEnabled) {
+            if (firstVisiblePosition != mLastFirstVisiblePosition && mLastFirstVisiblePosition >= 0) {
+                mScrollingForward = firstVisiblePosition > mLastFirstVisiblePosition;
+            }
+            schedulePrebind();
+        }
+        mLastFirstVisiblePosition = firstVisiblePosition;
+
+        // 从外层往里层叠放，每一级被同级或更外层的下一个header往上（横向列表为往左）推。
+        // 下一个header按adapter position直接找，网格中不管它在哪一列都能找到
+        int stackEnd = 0;
+        for (int i = 0; i < mLevels.length; i++) {
+            PinnedLevel level = mLevels[i];
+            if (level.headerView == null) {
+                continue;
+            }
+            int headerSize = mVertical ? level.headerView.getHeight() : level.headerView.getWidth();
+            int offset = stackEnd;
+            int nextHeaderPosition = findNextBoundary(i, level.headerPosition);
+            View v = nextHeaderPosition >= 0 ? layoutManager.findViewByPosition(nextHeaderPosition) : null;
+            if (v != null) {
+                int nextHeaderStart = mVertical ? v.getTop() : v.getLeft();
+                if (nextHeaderStart < offset + headerSize) {
+                    offset = nextHeaderStart - headerSize;
+                }
+            }
+            level.offset = offset;
+            stackEnd = offset + headerSize;
+        }
+        mPinnedHeaderEnd = stackEnd;
+    }
 
-            // read layout parameters
-            ViewGroup.LayoutParams layoutParams = mPinnedHeaderView.getLayoutParams();
-            if (layoutParams == null) {
-                layoutParams = new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT);
-                mPinnedHeaderView.setLayoutParams(layoutParams);
+    /**
+     * 第一个可见item的adapter position，跳过移除动画中已经没有position的child。
+     * Linear和Grid按child顺序取第一个；瀑布流的child不按position排序，取最小的
+     */
+    static int findFirstAdapterPosition(RecyclerView.LayoutManager layoutManager) {
+        final boolean staggered = layoutManager instanceof StaggeredGridLayoutManager;
+        int firstPosition = RecyclerView.NO_POSITION;
+        final int childCount = layoutManager.getChildCount();
+        for (int i = 0; i < childCount; i++) {
+            int position = ((RecyclerView.LayoutParams) layoutManager.getChildAt(i).getLayoutParams()).getViewAdapterPosition();
+            if (position >= 0 && (firstPosition < 0 || position < firstPosition)) {
+                firstPosition = position;
+                if (!staggered) {
+                    break;
+                }
             }
+        }
+        return firstPosition;
+    }
+
+    private static boolean isVertical(RecyclerView.LayoutManager layoutManager) {
+        if (layoutManager instanceof LinearLayoutManager) {
+            return ((LinearLayoutManager) layoutManager).getOrientation() == LinearLayoutManager.VERTICAL;
+        }
+        if (layoutManager instanceof StaggeredGridLayoutManager) {
+            return ((StaggeredGridLayoutManager) layoutManager).getOrientation() == StaggeredGridLayoutManager.VERTICAL;
+        }
+        return layoutManager.canScrollVertically() || !layoutManager.canScrollHorizontally();
+    }
+
+    /**
+     * 让GridLayoutManager中的吸顶header占满一整行（横向网格为一整列），其他item仍使用原来的SpanSizeLookup。
+     * 索引有效时在section索引里二分查找，索引还没建好时才判断view type和{@link PinnedHeaderCreator}。
+     * 沿用原来SpanSizeLookup的span index缓存设置，需要在注册完header类型之后调用
+     */
+    public void attachFullSpanHeaders(final RecyclerView parent, final GridLayoutManager layoutManager) {
+        final GridLayoutManager.SpanSizeLookup spanSizeLookup = layoutManager.getSpanSizeLookup();
+        GridLayoutManager.SpanSizeLookup fullSpanLookup = new GridLayoutManager.SpanSizeLookup() {
+            @Override
+            public int getSpanSize(int position) {
+                if (isPinnedPosition(parent, position)) {
+                    return layoutManager.getSpanCount();
+                }
+                return spanSizeLookup.getSpanSize(position);
+            }
+        };
+        fullSpanLookup.setSpanIndexCacheEnabled(spanSizeLookup.isSpanIndexCacheEnabled());
+        layoutManager.setSpanSizeLookup(fullSpanLookup);
+    }
+
+    /**
+     * position是否是吸顶header，索引失效时直接判断，用来检查旧索引里的position
+     */
+    private boolean isPinnedPosition(RecyclerView parent, int position) {
+        RecyclerView.Adapter adapter = parent.getAdapter();
+        if (adapter == null || position >= adapter.getItemCount()) {
+            return false;
+        }
+        if (!mSectionIndexValid || adapter != mAdapter) {
+            return isPinnedViewType(parent, position, adapter.getItemViewType(position));
+        }
+        for (PinnedLevel level : mLevels) {
+            if (level.sectionIndex.contains(position)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把某一级的header切换到headerPosition，position没变时不重新绑定
+     */
+    private void bindPinnedHeader(RecyclerView parent, PinnedLevel level, int headerPosition) {
+        if (level.stale) {
+            level.stale = false;
+            if (refreshStaleHeader(parent, level, headerPosition)) {
+                return;
+            }
+            releasePinnedHeader(level);
+        }
+
+        if (headerPosition < 0) {
+            releasePinnedHeader(level);
+            return;
+        }
+
+        if (level.headerPosition != headerPosition) {
+            releasePinnedHeader(level);
+            level.headerPosition = headerPosition;
+            int viewType = mAdapter.getItemViewType(headerPosition);
+            long itemId = getHeaderItemId(headerPosition);
+            int parentWidth = parent.getWidth();
+            int parentHeight = parent.getHeight();
+
+            PinnedHeaderPool.Entry entry = mHeaderPool.obtain(viewType, itemId, parentWidth, parentHeight);
+            if (entry == null) {
+                entry = mHeaderPool.add(viewType, mAdapter.createViewHolder(parent, viewType));
+            }
+            if (!entry.isBound(itemId, parentWidth, parentHeight)) {
+                bindEntry(parent, entry, headerPosition, itemId);
+                if (mPrebindEnabled) {
+                    onPrebindResult(false, headerPosition);
+                }
+            } else if (entry.consumePrebound()) {
+                onPrebindResult(true, headerPosition);
+            }
+            entry.setInUse(true);
+            level.entry = entry;
+            level.headerView = entry.holder.itemView;
+            level.snapshot.invalidate();
+        } else if (level.headerView != null && level.headerView.isLayoutRequested()) {
+            // header内容变化请求了重新布局
+            measurePinnedHeader(parent, level.headerView);
+            level.snapshot.invalidate();
+        }
+    }
 
-            int heightMode = View.MeasureSpec.getMode(layoutParams.height);
-            int heightSize = View.MeasureSpec.getSize(layoutParams.height);
+    private void bindEntry(RecyclerView parent, PinnedHeaderPool.Entry entry, int position, long itemId) {
+        mAdapter.bindViewHolder(entry.holder, position);
+        measurePinnedHeader(parent, entry.holder.itemView);
+        entry.markBound(itemId, position, parent.getWidth(), parent.getHeight());
+        entry.content = mContentProvider != null ? mContentProvider.getContent(position) : null;
+    }
+
+    /**
+     * 数据刷新后header的stable id没变就保留原来的view，
+     * 内容变化时在原来的ViewHolder上重新绑定，不重新创建也不切换view。
+     * adapter没有stable id时无法判断是不是同一个item，按正常流程重新绑定
+     *
+     * @return 是否保留了原来的header
+     */
+    private boolean refreshStaleHeader(RecyclerView parent, PinnedLevel level, int headerPosition) {
+        PinnedHeaderPool.Entry entry = level.entry;
+        if (entry == null || !mAdapter.hasStableIds() || headerPosition < 0 || headerPosition >= mAdapter.getItemCount()
+                || mAdapter.getItemViewType(headerPosition) != entry.holder.getItemViewType()
+                || getHeaderItemId(headerPosition) != entry.getItemId()) {
+            return false;
+        }
+
+        level.headerPosition = headerPosition;
+        final int parentWidth = parent.getWidth();
+        final int parentHeight = parent.getHeight();
+        Object content = mContentProvider != null ? mContentProvider.getContent(headerPosition) : null;
+        if (mContentProvider == null || !equalsContent(entry.content, content)) {
+            mAdapter.bindViewHolder(entry.holder, headerPosition);
+            entry.content = content;
+        }
+        if (level.headerView.isLayoutRequested() || !entry.isMeasuredFor(parentWidth, parentHeight)) {
+            measurePinnedHeader(parent, level.headerView);
+        }
+        entry.markBound(entry.getItemId(), headerPosition, parentWidth, parentHeight);
+        // 尺寸不变的内容变化不会请求布局，每次刷新后快照都按过期处理
+        level.snapshot.invalidate();
+        return true;
+    }
+
+    private static boolean equalsContent(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * 设置header内容的提供者，数据刷新后header的item id和内容都没变就不重新绑定
+     */
+    public void setPinnedHeaderContentProvider(PinnedHeaderContentProvider provider) {
+        mContentProvider = provider;
+    }
+
+    /**
+     * 开启后根据滚动方向预测每一级的下一个header，在主线程空闲时创建、绑定并测量好，
+     * 滑过section边界时直接从复用池取出，不在onDraw中绑定
+     */
+    public void enableIdlePrebind(boolean enable) {
+        mPrebindEnabled = enable;
+        if (!enable && mPrebindScheduled) {
+            Looper.myQueue().removeIdleHandler(mPrebindIdleHandler);
+            mPrebindScheduled = false;
+        }
+    }
+
+    public void setOnPrebindListener(OnPrebindListener listener) {
+        mOnPrebindListener = listener;
+    }
+
+    /**
+     * 切换header时直接使用了提前绑定的ViewHolder的次数
+     */
+    public int getPrebindHitCount() {
+        return mPrebindHitCount;
+    }
+
+    /**
+     * 切换header时只能在绘制中绑定的次数
+     */
+    public int getPrebindMissCount() {
+        return mPrebindMissCount;
+    }
+
+    public void resetPrebindStats() {
+        mPrebindHitCount = 0;
+        mPrebindMissCount = 0;
+    }
+
+    private void onPrebindResult(boolean hit, int adapterPosition) {
+        if (hit) {
+            mPrebindHitCount++;
+        } else {
+            mPrebindMissCount++;
+        }
+        if (mOnPrebindListener != null) {
+            mOnPrebindListener.onPrebindResult(hit, adapterPosition);
+        }
+    }
+
+    private void schedulePrebind() {
+        if (!mPrebindScheduled) {
+            mPrebindScheduled = true;
+            Looper.myQueue().addIdleHandler(mPrebindIdleHandler);
+        }
+    }
+
+    /**
+     * 每一级按滚动方向提前绑定一个header，已经绑定好的只是查一下复用池
+     */
+    private void prebindPinnedHeaders() {
+        final RecyclerView parent = mParent;
+        if (!mPrebindEnabled || parent == null || mAdapter == null || parent.getAdapter() != mAdapter
+                || mIsAdapterDataChanged || !mSectionIndexValid) {
+            return;
+        }
+        final int parentWidth = parent.getWidth();
+        final int parentHeight = parent.getHeight();
+        if (parentWidth <= 0 || parentHeight <= 0) {
+            return;
+        }
 
-            if (heightMode == View.MeasureSpec.UNSPECIFIED) {
-                heightMode = View.MeasureSpec.EXACTLY;
+        final int itemCount = mAdapter.getItemCount();
+        for (PinnedLevel level : mLevels) {
+            int anchor = level.headerPosition >= 0 ? level.headerPosition : mLastFirstVisiblePosition;
+            int position;
+            if (mScrollingForward) {
+                position = level.sectionIndex.higher(anchor);
+            } else {
+                position = level.headerPosition > 0 ? level.sectionIndex.floor(level.headerPosition - 1) : -1;
+            }
+            if (position < 0 || position >= itemCount) {
+                continue;
+            }
+
+            int viewType = mAdapter.getItemViewType(position);
+            long itemId = getHeaderItemId(position);
+            PinnedHeaderPool.Entry entry = mHeaderPool.obtain(viewType, itemId, parentWidth, parentHeight);
+            if (entry == null) {
+                entry = mHeaderPool.add(viewType, mAdapter.createViewHolder(parent, viewType));
             }
+            if (!entry.isBound(itemId, parentWidth, parentHeight)) {
+                bindEntry(parent, entry, position, itemId);
+                entry.markPrebound();
+            }
+        }
+    }
 
-            int maxHeight = parent.getHeight() - parent.getPaddingTop() - parent.getPaddingBottom();
-            if (heightSize > maxHeight) {
-                heightSize = maxHeight;
+    private void releasePinnedHeader(PinnedLevel level) {
+        if (level.entry != null) {
+            level.entry.setInUse(false);
+        }
+        level.headerPosition = -1;
+        level.stale = false;
+        level.entry = null;
+        level.headerView = null;
+        level.snapshot.invalidate();
+    }
+
+    /**
+     * 推走某一级header的边界：同级或更外层中，headerPosition之后的第一个header
+     */
+    private int findNextBoundary(int levelIndex, int headerPosition) {
+        int boundary = -1;
+        for (int i = 0; i <= levelIndex; i++) {
+            int next = mLevels[i].sectionIndex.higher(headerPosition);
+            if (next >= 0 && (boundary < 0 || next < boundary)) {
+                boundary = next;
             }
+        }
+        return boundary;
+    }
+
+    /**
+     * 掉帧时冻结header快照，header自身的刷新（比如进度变化）在列表流畅或停止后再显示
+     */
+    public void setFrameQualityMonitor(FrameQualityMonitor monitor) {
+        mQualityMonitor = monitor;
+    }
 
-            // measure & layout
-            int ws = View.MeasureSpec.makeMeasureSpec(parent.getWidth() - parent.getPaddingLeft() - parent.getPaddingRight(), View.MeasureSpec.EXACTLY);
-            int hs = View.MeasureSpec.makeMeasureSpec(heightSize, heightMode);
-            mPinnedHeaderView.measure(ws, hs);
-            mPinnedHeaderView.layout(0, 0, mPinnedHeaderView.getMeasuredWidth(), mPinnedHeaderView.getMeasuredHeight());
+    /**
+     * 设置header快照的内存上限，超过上限的header每帧直接绘制
+     *
+     * @param maxBytes 按ARGB_8888估算的字节数
+     */
+    public void setSnapshotMaxBytes(int maxBytes) {
+        mSnapshotMaxBytes = maxBytes;
+        for (PinnedLevel level : mLevels) {
+            level.snapshot.setMaxBytes(maxBytes);
         }
     }
 
-    private int findPinnedHeaderPosition(RecyclerView parent, int fromPosition) {
-        if (fromPosition > mAdapter.getItemCount() || fromPosition < 0) {
-            return -1;
+    private void measurePinnedHeader(RecyclerView parent, View pinnedHeaderView) {
+        // read layout parameters
+        ViewGroup.LayoutParams layoutParams = pinnedHeaderView.getLayoutParams();
+        if (layoutParams == null) {
+            layoutParams = mVertical
+                    ? new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT)
+                    : new ViewGroup.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.MATCH_PARENT);
+            pinnedHeaderView.setLayoutParams(layoutParams);
         }
 
-        for (int position = fromPosition; position >= 0; position--) {
+        int parentWidth = parent.getWidth() - parent.getPaddingLeft() - parent.getPaddingRight();
+        int parentHeight = parent.getHeight() - parent.getPaddingTop() - parent.getPaddingBottom();
+
+        // measure & layout
+        // 纵向列表header和列表等宽，横向列表header和列表等高
+        int ws;
+        int hs;
+        if (mVertical) {
+            ws = View.MeasureSpec.makeMeasureSpec(parentWidth, View.MeasureSpec.EXACTLY);
+            hs = makeScrollAxisMeasureSpec(layoutParams.height, parentHeight);
+        } else {
+            ws = makeScrollAxisMeasureSpec(layoutParams.width, parentWidth);
+            hs = View.MeasureSpec.makeMeasureSpec(parentHeight, View.MeasureSpec.EXACTLY);
+        }
+        pinnedHeaderView.measure(ws, hs);
+        pinnedHeaderView.layout(0, 0, pinnedHeaderView.getMeasuredWidth(), pinnedHeaderView.getMeasuredHeight());
+    }
+
+    /**
+     * 滚动方向上的MeasureSpec，尺寸不超过列表可用空间
+     */
+    private static int makeScrollAxisMeasureSpec(int layoutSize, int maxSize) {
+        int mode = View.MeasureSpec.getMode(layoutSize);
+        int size = View.MeasureSpec.getSize(layoutSize);
+
+        if (mode == View.MeasureSpec.UNSPECIFIED) {
+            mode = View.MeasureSpec.EXACTLY;
+        }
+
+        if (size > maxSize) {
+            size = maxSize;
+        }
+        return View.MeasureSpec.makeMeasureSpec(size, mode);
+    }
+
+    /**
+     * 索引失效后在主线程空闲时重建，重建之前继续使用旧索引
+     */
+    private void scheduleSectionRebuild() {
+        if (!mSectionIndexValid && !mSectionRebuildScheduled) {
+            mSectionRebuildScheduled = true;
+            Looper.myQueue().addIdleHandler(mSectionRebuildIdleHandler);
+        }
+    }
+
+    /**
+     * 索引失效时全量扫描一次adapter，之后只在adapter的局部变化时增量更新
+     */
+    private void ensureSectionIndex() {
+        if (mSectionIndexValid || mAdapter == null || mParent == null) {
+            return;
+        }
+
+        for (PinnedLevel level : mLevels) {
+            level.sectionIndex.clear();
+        }
+        final int itemCount = mAdapter.getItemCount();
+        for (int position = 0; position < itemCount; position++) {
             final int viewType = mAdapter.getItemViewType(position);
-            if (isPinnedViewType(parent, position, viewType)) {
-                return position;
+            if (isPinnedViewType(mParent, position, viewType)) {
+                mLevels[mTypePinnedHeaderLevels.get(viewType)].sectionIndex.append(position);
             }
         }
+        mSectionIndexValid = true;
+        mSectionIndexUsable = true;
+    }
 
-        return -1;
+    /**
+     * 取出某一级的section索引给{@link SectionIndexBar}使用，和吸顶共用同一份索引
+     *
+     * @param rebuild 索引失效时是否重建，拖动过程中传false，不重新扫描adapter
+     * @return 没有注册这一级时返回null
+     */
+    SectionIndex getSectionIndex(RecyclerView parent, int level, boolean rebuild) {
+        if (level >= mLevels.length) {
+            return null;
+        }
+        if (rebuild) {
+            updatePinnedHeader(parent);
+            ensureSectionIndex();
+        }
+        return mLevels[level].sectionIndex;
     }
 
-    private boolean isPinnedViewType(RecyclerView parent, int adapterPosition, int viewType) {
-        PinnedHeaderCreator pinnedHeaderCreator =  mTypePinnedHeaderFactories.get(viewType);
+    /**
+     * 重新判断一段position是否是header以及属于哪一级，索引已失效时不处理，等下次全量重建
+     */
+    private void refreshSections(int positionStart, int itemCount) {
+        if (!mSectionIndexValid || mAdapter == null || mParent == null) {
+            mSectionIndexValid = false;
+            return;
+        }
 
-        return pinnedHeaderCreator != null && pinnedHeaderCreator.create(parent, adapterPosition);
+        final int end = Math.min(positionStart + itemCount, mAdapter.getItemCount());
+        for (int position = positionStart; position < end; position++) {
+            final int viewType = mAdapter.getItemViewType(position);
+            final int pinnedLevel = isPinnedViewType(mParent, position, viewType) ? mTypePinnedHeaderLevels.get(viewType) : -1;
+            for (int i = 0; i < mLevels.length; i++) {
+                mLevels[i].sectionIndex.set(position, i == pinnedLevel);
+            }
+        }
     }
 
-    private boolean isPinnedView(RecyclerView parent, View v) {
-        int position = parent.getChildAdapterPosition(v);
-        if (position == RecyclerView.NO_POSITION) {
-            return false;
+    /**
+     * adapter局部变化：[start, end)内正在显示的header等确定新的headerPosition之后再判断能否继续使用，
+     * end之后的header和复用池里的ViewHolder只平移记录的position，不丢弃也不重新绑定
+     *
+     * @param shift 插入为正，移除为负，只是内容变化为0
+     */
+    private void onAdapterRangeChanged(int start, int end, int shift) {
+        mHeaderPool.onRangeChanged(start, end, shift, mAdapter == null || !mAdapter.hasStableIds());
+        for (PinnedLevel level : mLevels) {
+            if (level.headerPosition >= end) {
+                level.headerPosition += shift;
+            } else if (level.headerPosition >= start) {
+                level.stale = level.entry != null;
+            }
+        }
+        if (mLastFirstVisiblePosition >= end) {
+            mLastFirstVisiblePosition += shift;
         }
+    }
 
-        return isPinnedViewType(parent, position, mAdapter.getItemViewType(position));
+    /**
+     * 复用池里区分header的item id，adapter没有stable id时用position
+     */
+    private long getHeaderItemId(int position) {
+        return mAdapter.hasStableIds() ? mAdapter.getItemId(position) : position;
+    }
+
+    private boolean isPinnedViewType(RecyclerView parent, int adapterPosition, int viewType) {
+        PinnedHeaderCreator pinnedHeaderCreator =  mTypePinnedHeaderFactories.get(viewType);
+
+        return pinnedHeaderCreator != null && pinnedHeaderCreator.create(parent, adapterPosition);
     }
 
     private void updatePinnedHeader(RecyclerView parent) {
+        if (mParent != parent) {
+            release();
+            mParent = parent;
+            mParent.addOnAttachStateChangeListener(mAttachStateListener);
+            LeakWatcher.watchOwned(this, parent.getContext());
+        }
         RecyclerView.Adapter adapter = parent.getAdapter();
-        if (mAdapter != adapter || mIsAdapterDataChanged) {
-            resetPinnedHeader();
+        boolean adapterChanged = mAdapter != adapter;
+        if (adapterChanged) {
+            mSectionIndexValid = false;
+            mSectionIndexUsable = false;
             if (mAdapter != null) {
                 mAdapter.unregisterAdapterDataObserver(mAdapterDataObserver);
             }
@@ -150,20 +870,137 @@ public class PinnedHeaderDecoration extends RecyclerView.ItemDecoration {
             mAdapter = adapter;
             if (mAdapter != null) {
                 mAdapter.registerAdapterDataObserver(mAdapterDataObserver);
+                LeakWatcher.watchOwned(mAdapter, parent.getContext());
+            }
+        }
+        if (adapterChanged) {
+            mIsAdapterDataChanged = false;
+            resetPinnedHeader();
+            mHeaderPool.clear();
+            mLastFirstVisiblePosition = RecyclerView.NO_POSITION;
+        } else if (mIsAdapterDataChanged) {
+            mIsAdapterDataChanged = false;
+            mHeaderPool.invalidate();
+            // 先保留当前header，确定新的headerPosition之后按stable id判断能否继续使用，没有stable id时重新绑定。
+            // 不先清空，刷新后找不到第一个可见item的那几帧header也不会消失
+            for (PinnedLevel level : mLevels) {
+                level.stale = level.entry != null;
             }
         }
     }
 
+    /**
+     * 和RecyclerView解除绑定：注销adapter监听，释放header、复用池和快照，不再引用RecyclerView和adapter。
+     * RecyclerView从窗口移除时自动调用；调用removeItemDecoration之后需要手动调用。
+     * 之后再绘制时会重新绑定
+     */
+    public void release() {
+        if (mParent != null) {
+            mParent.removeOnAttachStateChangeListener(mAttachStateListener);
+            mParent = null;
+        }
+        if (mAdapter != null) {
+            mAdapter.unregisterAdapterDataObserver(mAdapterDataObserver);
+            mAdapter = null;
+        }
+        if (mPrebindScheduled) {
+            Looper.myQueue().removeIdleHandler(mPrebindIdleHandler);
+            mPrebindScheduled = false;
+        }
+        if (mSectionRebuildScheduled) {
+            Looper.myQueue().removeIdleHandler(mSectionRebuildIdleHandler);
+            mSectionRebuildScheduled = false;
+        }
+        resetPinnedHeader();
+        for (PinnedLevel level : mLevels) {
+            level.snapshot.release();
+        }
+        mHeaderPool.clear();
+        mIsAdapterDataChanged = false;
+        mSectionIndexValid = false;
+        mSectionIndexUsable = false;
+        mLastFirstVisiblePosition = RecyclerView.NO_POSITION;
+    }
+
     private void resetPinnedHeader() {
-        mHeaderPosition = -1;
-        mPinnedHeaderView = null;
+        for (PinnedLevel level : mLevels) {
+            releasePinnedHeader(level);
+        }
+        mPinnedHeaderEnd = 0;
     }
 
     public void registerTypePinnedHeader(int itemType, PinnedHeaderCreator pinnedHeaderCreator) {
+        registerTypePinnedHeader(itemType, 0, pinnedHeaderCreator);
+    }
+
+    /**
+     * 注册某一级的吸顶header
+     *
+     * @param itemType            header的view type
+     * @param level               级别，0为最外层，比如设备→日期→文件夹分别为0、1、2
+     * @param pinnedHeaderCreator 判断该position是否吸顶
+     */
+    public void registerTypePinnedHeader(int itemType, int level, PinnedHeaderCreator pinnedHeaderCreator) {
+        if (level < 0) {
+            throw new IllegalArgumentException("level must be >= 0");
+        }
         mTypePinnedHeaderFactories.put(itemType, pinnedHeaderCreator);
+        mTypePinnedHeaderLevels.put(itemType, level);
+        if (level >= mLevels.length) {
+            resetPinnedHeader();
+            int oldLength = mLevels.length;
+            mLevels = Arrays.copyOf(mLevels, level + 1);
+            for (int i = oldLength; i < mLevels.length; i++) {
+                mLevels[i] = new PinnedLevel();
+                mLevels[i].snapshot.setMaxBytes(mSnapshotMaxBytes);
+            }
+        }
+        mSectionIndexValid = false;
+        mSectionIndexUsable = false;
     }
 
     public interface PinnedHeaderCreator {
         boolean create(RecyclerView parent, int adapterPosition);
     }
+
+    /**
+     * 提供header的内容，用于数据刷新后判断header是否需要重新绑定，
+     * 返回值需要实现equals，比如header显示的标题
+     */
+    public interface PinnedHeaderContentProvider {
+        Object getContent(int adapterPosition);
+    }
+
+    /**
+     * 切换header时回调提前绑定是否命中，用来评估预测的效果
+     */
+    public interface OnPrebindListener {
+        /**
+         * @param hit             true为使用了提前绑定好的ViewHolder，false为在绘制中绑定
+         * @param adapterPosition 切换到的header的position
+         */
+        void onPrebindResult(boolean hit, int adapterPosition);
+    }
+
+    /**
+     * 某一级吸顶header的索引和显示状态
+     */
+    private static class PinnedLevel {
+        final SectionIndex sectionIndex = new SectionIndex();
+        final PinnedHeaderSnapshot snapshot = new PinnedHeaderSnapshot();
+
+        int headerPosition = -1;
+        PinnedHeaderPool.Entry entry;
+        View headerView;
+
+        /**
+         * 数据刷新后还没确认是否能继续使用的header
+         */
+        boolean stale;
+
+        /**
+         * header在滚动方向上的偏移，被推走时为负
+         */
+        int offset;
+    }
 }
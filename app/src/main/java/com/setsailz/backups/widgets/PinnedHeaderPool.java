@@ -0,0 +1,199 @@
+package com.setsailz.backups.widgets;
+
+import android.support.v7.widget.RecyclerView;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+
+/**
+ * 吸顶header的ViewHolder复用池
+ * 每种view type最多保留{@link #MAX_HOLDERS_PER_TYPE}个ViewHolder，切换section时重新绑定而不是重新创建。
+ * 每个ViewHolder记住自己绑定的(view type, 父布局宽高, item id)，完全一致时不需要重新绑定和测量
+ */
+class PinnedHeaderPool {
+    /**
+     * 当前显示的和上一个显示的，来回滑过section边界时都能直接复用。
+     * 多级header同时显示同一种view type时可以临时超出
+     */
+    static final int MAX_HOLDERS_PER_TYPE = 2;
+
+    private final SparseArray<ArrayList<Entry>> mEntries = new SparseArray<>();
+
+    /**
+     * 取出一个可用的ViewHolder
+     *
+     * @param viewType     header的view type
+     * @param itemId       header的stable id，adapter没有stable id时传position
+     * @param parentWidth  父布局宽度
+     * @param parentHeight 父布局高度
+     * @return 可用的entry，调用{@link Entry#isBound(long, int, int)}判断是否需要重新绑定；
+     * 池未满或者都在显示中时返回null，由调用方创建。正在显示的entry不会被重新分配
+     */
+    Entry obtain(int viewType, long itemId, int parentWidth, int parentHeight) {
+        ArrayList<Entry> entries = mEntries.get(viewType);
+        if (entries == null) {
+            return null;
+        }
+
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (!entry.mInUse && entry.isBound(itemId, parentWidth, parentHeight)) {
+                moveToFront(entries, i);
+                return entry;
+            }
+        }
+
+        if (entries.size() < MAX_HOLDERS_PER_TYPE) {
+            return null;
+        }
+
+        // 复用最久没用过的
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Entry entry = entries.get(i);
+            if (!entry.mInUse) {
+                entry.mBound = false;
+                moveToFront(entries, i);
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    Entry add(int viewType, RecyclerView.ViewHolder holder) {
+        ArrayList<Entry> entries = mEntries.get(viewType);
+        if (entries == null) {
+            entries = new ArrayList<>(MAX_HOLDERS_PER_TYPE);
+            mEntries.put(viewType, entries);
+        }
+        Entry entry = new Entry(holder);
+        entries.add(0, entry);
+        return entry;
+    }
+
+    /**
+     * adapter数据变化，所有ViewHolder都需要重新绑定，但保留下来复用
+     */
+    void invalidate() {
+        for (int i = 0; i < mEntries.size(); i++) {
+            ArrayList<Entry> entries = mEntries.valueAt(i);
+            for (int j = 0; j < entries.size(); j++) {
+                entries.get(j).mBound = false;
+            }
+        }
+    }
+
+    /**
+     * adapter局部变化：绑定在[start, end)内的ViewHolder需要重新绑定，绑定在end之后的按shift平移记录的position，
+     * 其他的不受影响，继续复用
+     *
+     * @param shift       插入为正，移除为负，只是内容变化为0
+     * @param positionIds adapter没有stable id，item id就是position，需要一起平移
+     */
+    void onRangeChanged(int start, int end, int shift, boolean positionIds) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            ArrayList<Entry> entries = mEntries.valueAt(i);
+            for (int j = 0; j < entries.size(); j++) {
+                Entry entry = entries.get(j);
+                if (entry.mPosition >= end) {
+                    entry.mPosition += shift;
+                    if (positionIds) {
+                        entry.mItemId += shift;
+                    }
+                } else if (entry.mPosition >= start) {
+                    entry.mBound = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * adapter更换，旧adapter的ViewHolder不能再用
+     */
+    void clear() {
+        mEntries.clear();
+    }
+
+    private static void moveToFront(ArrayList<Entry> entries, int index) {
+        if (index > 0) {
+            entries.add(0, entries.remove(index));
+        }
+    }
+
+    static class Entry {
+        final RecyclerView.ViewHolder holder;
+
+        private boolean mInUse;
+        private boolean mBound;
+        private long mItemId;
+
+        /**
+         * 最近一次绑定的adapter position，adapter增删item时跟着平移
+         */
+        private int mPosition = -1;
+        private int mParentWidth;
+        private int mParentHeight;
+        private boolean mPrebound;
+
+        /**
+         * 绑定时的header内容，用来判断数据刷新后是否需要重新绑定
+         */
+        Object content;
+
+        Entry(RecyclerView.ViewHolder holder) {
+            this.holder = holder;
+        }
+
+        /**
+         * 正在作为某一级header显示
+         */
+        void setInUse(boolean inUse) {
+            mInUse = inUse;
+        }
+
+        /**
+         * 是否已经按这组参数绑定并测量过
+         */
+        boolean isBound(long itemId, int parentWidth, int parentHeight) {
+            return mBound && mItemId == itemId && mParentWidth == parentWidth && mParentHeight == parentHeight;
+        }
+
+        /**
+         * 最近一次绑定的item id，失效后仍然保留
+         */
+        long getItemId() {
+            return mItemId;
+        }
+
+        /**
+         * 是否按这个父布局尺寸测量过
+         */
+        boolean isMeasuredFor(int parentWidth, int parentHeight) {
+            return mParentWidth == parentWidth && mParentHeight == parentHeight;
+        }
+
+        void markBound(long itemId, int position, int parentWidth, int parentHeight) {
+            mPrebound = false;
+            mBound = true;
+            mItemId = itemId;
+            mPosition = position;
+            mParentWidth = parentWidth;
+            mParentHeight = parentHeight;
+        }
+
+        /**
+         * 空闲时提前绑定的，还没有显示过
+         */
+        void markPrebound() {
+            mPrebound = true;
+        }
+
+        /**
+         * 是否是提前绑定的，取完之后清除标记，每次提前绑定只统计一次
+         */
+        boolean consumePrebound() {
+            boolean prebound = mPrebound;
+            mPrebound = false;
+            return prebound;
+        }
+    }
+}
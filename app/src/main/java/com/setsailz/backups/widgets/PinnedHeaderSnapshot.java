@@ -0,0 +1,206 @@
+package com.setsailz.backups.widgets;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Picture;
+import android.os.Build;
+import android.view.View;
+import android.view.ViewGroup;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+/**
+ * 吸顶header的绘制快照
+ * 录制一次之后，只是吸顶位置变化时直接重放录制好的Picture（API 23以下的硬件加速画布用Bitmap），不再每帧执行整棵view树的draw。
+ * 内容版本变化（重新绑定、数据刷新、重新测量）时重新录制；header不在窗口里，自身和子view的invalidate
+ * （setText、异步加载的图片通过Drawable.Callback刷新等）不会传到父view，只会把发起的view标记为dirty，
+ * 所以绘制前检查整棵header树有没有dirty的view，有就重新录制，录制时的draw会清掉这些标记。
+ * 超过内存上限的header不做快照；系统内存紧张（trim memory）时释放所有快照
+ */
+class PinnedHeaderSnapshot {
+    /**
+     * 默认的快照内存上限，按ARGB_8888估算
+     */
+    static final int DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+
+    private static final ArrayList<WeakReference<PinnedHeaderSnapshot>> sSnapshots = new ArrayList<>();
+    private static boolean sTrimMemoryRegistered;
+
+    private int mMaxBytes = DEFAULT_MAX_BYTES;
+    private boolean mFrozen;
+
+    /**
+     * header内容的版本，每次绑定、刷新或重新测量加一
+     */
+    private int mContentVersion;
+
+    /**
+     * 快照录制时的内容版本，-1表示没有可用的快照
+     */
+    private int mRecordedVersion = -1;
+
+    private Picture mPicture;
+    private Bitmap mBitmap;
+    private final Canvas mBitmapCanvas = new Canvas();
+
+    PinnedHeaderSnapshot() {
+        synchronized (sSnapshots) {
+            pruneLocked();
+            sSnapshots.add(new WeakReference<>(this));
+        }
+    }
+
+    /**
+     * 移除已经被回收的快照的弱引用，调用时需要持有sSnapshots的锁
+     */
+    private static void pruneLocked() {
+        for (int i = sSnapshots.size() - 1; i >= 0; i--) {
+            if (sSnapshots.get(i).get() == null) {
+                sSnapshots.remove(i);
+            }
+        }
+    }
+
+    /**
+     * 注册trim memory回调，进程内只注册一次，回调只持有快照的弱引用
+     */
+    static void watchTrimMemory(Context context) {
+        synchronized (sSnapshots) {
+            if (sTrimMemoryRegistered) {
+                return;
+            }
+            sTrimMemoryRegistered = true;
+        }
+        context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                    releaseAll();
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                releaseAll();
+            }
+        });
+    }
+
+    private static void releaseAll() {
+        synchronized (sSnapshots) {
+            for (int i = sSnapshots.size() - 1; i >= 0; i--) {
+                PinnedHeaderSnapshot snapshot = sSnapshots.get(i).get();
+                if (snapshot == null) {
+                    sSnapshots.remove(i);
+                } else {
+                    snapshot.release();
+                }
+            }
+        }
+    }
+
+    void setMaxBytes(int maxBytes) {
+        mMaxBytes = maxBytes;
+        release();
+    }
+
+    /**
+     * 冻结时header自身的刷新暂不重新录制，仍然重放旧的快照，内容版本变化时照常录制。
+     * dirty标记会保留到下次录制，解除冻结后的第一帧就会显示最新的内容
+     */
+    void setFrozen(boolean frozen) {
+        mFrozen = frozen;
+    }
+
+    /**
+     * header重新绑定、数据刷新或者重新测量后调用，内容版本加一
+     */
+    void invalidate() {
+        mContentVersion++;
+    }
+
+    /**
+     * 释放快照占用的内存，下次绘制时重新录制
+     */
+    void release() {
+        mRecordedVersion = -1;
+        mPicture = null;
+        // 硬件加速时drawBitmap只记录到display list，渲染线程可能还在用这个bitmap，不能recycle，只释放引用交给GC
+        mBitmap = null;
+    }
+
+    /**
+     * 绘制header，快照和内容版本一致并且header没有自己刷新过就直接重放，否则先录制
+     */
+    void draw(Canvas canvas, View header) {
+        if (mRecordedVersion != mContentVersion || (!mFrozen && isDirty(header))) {
+            record(canvas, header);
+        }
+
+        if (mRecordedVersion != mContentVersion) {
+            header.draw(canvas);
+        } else if (mPicture != null) {
+            canvas.drawPicture(mPicture);
+        } else {
+            canvas.drawBitmap(mBitmap, 0, 0, null);
+        }
+    }
+
+    private void record(Canvas canvas, View header) {
+        mRecordedVersion = -1;
+        final int width = header.getWidth();
+        final int height = header.getHeight();
+        if (width <= 0 || height <= 0 || (long) width * height * 4 > mMaxBytes) {
+            release();
+            return;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M || !canvas.isHardwareAccelerated()) {
+            mBitmap = null;
+            if (mPicture == null) {
+                mPicture = new Picture();
+            }
+            header.draw(mPicture.beginRecording(width, height));
+            mPicture.endRecording();
+        } else {
+            // 硬件加速画布在API 23以下不支持drawPicture
+            mPicture = null;
+            if (mBitmap == null || mBitmap.getWidth() != width || mBitmap.getHeight() != height) {
+                mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            } else {
+                mBitmap.eraseColor(Color.TRANSPARENT);
+            }
+            mBitmapCanvas.setBitmap(mBitmap);
+            header.draw(mBitmapCanvas);
+            mBitmapCanvas.setBitmap(null);
+        }
+        mRecordedVersion = mContentVersion;
+    }
+
+    /**
+     * header或者它的任意一个子view在上次绘制之后调用过invalidate
+     */
+    private static boolean isDirty(View view) {
+        if (view.isDirty()) {
+            return true;
+        }
+        if (view instanceof ViewGroup) {
+            ViewGroup group = (ViewGroup) view;
+            for (int i = 0; i < group.getChildCount(); i++) {
+                if (isDirty(group.getChildAt(i))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,110 @@
+package com.setsailz.backups.widgets;
+
+import java.util.Arrays;
+
+/**
+ * 有序的section起点索引，保存所有吸顶header的adapter position
+ * 查找当前header和下一个header都是二分查找，adapter的增删移动只平移受影响的部分，不重新扫描整个adapter
+ */
+class SectionIndex {
+    private int[] mPositions = new int[16];
+    private int mSize;
+
+    int size() {
+        return mSize;
+    }
+
+    int get(int index) {
+        return mPositions[index];
+    }
+
+    void clear() {
+        mSize = 0;
+    }
+
+    boolean contains(int position) {
+        return Arrays.binarySearch(mPositions, 0, mSize, position) >= 0;
+    }
+
+    /**
+     * 设置某个position是否是header
+     */
+    void set(int position, boolean isHeader) {
+        final int index = Arrays.binarySearch(mPositions, 0, mSize, position);
+        if (isHeader && index < 0) {
+            insertAt(-index - 1, position);
+        } else if (!isHeader && index >= 0) {
+            System.arraycopy(mPositions, index + 1, mPositions, index, mSize - index - 1);
+            mSize--;
+        }
+    }
+
+    /**
+     * 按顺序追加，用于全量重建，position必须大于已有的所有值
+     */
+    void append(int position) {
+        insertAt(mSize, position);
+    }
+
+    /**
+     * 在positionStart处插入了itemCount个item，之后的header后移
+     */
+    void insertRange(int positionStart, int itemCount) {
+        for (int i = ceilingIndex(positionStart); i < mSize; i++) {
+            mPositions[i] += itemCount;
+        }
+    }
+
+    /**
+     * 从positionStart开始移除了itemCount个item，范围内的header删除，之后的header前移
+     */
+    void removeRange(int positionStart, int itemCount) {
+        final int from = ceilingIndex(positionStart);
+        final int to = ceilingIndex(positionStart + itemCount);
+        System.arraycopy(mPositions, to, mPositions, from, mSize - to);
+        mSize -= to - from;
+        for (int i = from; i < mSize; i++) {
+            mPositions[i] -= itemCount;
+        }
+    }
+
+    /**
+     * 小于等于position的最大header，没有返回-1
+     */
+    int floor(int position) {
+        final int index = ceilingIndex(position + 1) - 1;
+        return index >= 0 ? mPositions[index] : -1;
+    }
+
+    /**
+     * 小于等于position的最大header在数组里的下标，即position所在的section，没有返回-1
+     */
+    int floorIndex(int position) {
+        return ceilingIndex(position + 1) - 1;
+    }
+
+    /**
+     * 大于position的最小header，没有返回-1
+     */
+    int higher(int position) {
+        final int index = ceilingIndex(position + 1);
+        return index < mSize ? mPositions[index] : -1;
+    }
+
+    /**
+     * 第一个大于等于position的header在数组里的下标，都小于position时返回size
+     */
+    int ceilingIndex(int position) {
+        final int index = Arrays.binarySearch(mPositions, 0, mSize, position);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private void insertAt(int index, int position) {
+        if (mSize == mPositions.length) {
+            mPositions = Arrays.copyOf(mPositions, mSize * 2);
+        }
+        System.arraycopy(mPositions, index, mPositions, index + 1, mSize - index);
+        mPositions[index] = position;
+        mSize++;
+    }
+}
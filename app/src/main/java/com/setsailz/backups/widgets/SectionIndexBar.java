@@ -0,0 +1,401 @@
+package com.setsailz.backups.widgets;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.MotionEvent;
+import android.view.View;
+
+import com.setsailz.backups.R;
+
+/**
+ * 快速滚动的section索引条，比如A-Z或者日期
+ * section直接使用{@link PinnedHeaderDecoration}注册的吸顶header，和吸顶共用同一份有序的section起点索引，
+ * 索引只在adapter整体变化时重建一次，之后随adapter的局部变化增量更新。
+ * 索引失效后在主线程空闲时重建，绘制和拖动过程中只读取已有的索引，不会扫描adapter。
+ * section太多放不下时等间隔抽样显示，拖动时仍然可以定位到每一个section
+ */
+public class SectionIndexBar extends View {
+    private static final int DEFAULT_TEXT_SIZE_SP = 11;
+
+    private RecyclerView mRecyclerView;
+    private PinnedHeaderDecoration mDecoration;
+
+    /**
+     * 注册了数据监听的adapter，列表更换adapter时跟着更换
+     */
+    private RecyclerView.Adapter mAdapter;
+    private boolean mRebuildScheduled;
+
+    /**
+     * 使用哪一级吸顶header作为section
+     */
+    private int mLevel;
+
+    private SectionLabelProvider mLabelProvider;
+    private OnSectionSelectedListener mOnSectionSelectedListener;
+
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private int mTextColor;
+    private int mSelectedTextColor;
+    private float mLineHeight;
+    private float mBaselineOffset;
+
+    /**
+     * 当前列表所在的section，-1为没有
+     */
+    private int mCurrentSection = -1;
+
+    /**
+     * 拖动中选中的section
+     */
+    private int mTouchingSection = -1;
+    private boolean mTouching;
+
+    private final RecyclerView.OnScrollListener mOnScrollListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            // 更换adapter后的布局也会回调onScrolled
+            updateAdapter();
+            updateCurrentSection();
+        }
+    };
+
+    /**
+     * decoration的监听负责维护索引，这里只安排空闲时检查索引并刷新显示。
+     * 两个监听的回调顺序不确定，所以不在回调里直接读索引
+     */
+    private final RecyclerView.AdapterDataObserver mAdapterDataObserver = new RecyclerView.AdapterDataObserver() {
+        @Override
+        public void onChanged() {
+            scheduleRebuild();
+        }
+
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount) {
+            scheduleRebuild();
+        }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            scheduleRebuild();
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            scheduleRebuild();
+        }
+
+        @Override
+        public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+            scheduleRebuild();
+        }
+    };
+
+    private final MessageQueue.IdleHandler mRebuildIdleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            mRebuildScheduled = false;
+            getSections(true);
+            updateCurrentSection();
+            invalidate();
+            return false;
+        }
+    };
+
+    public SectionIndexBar(Context context) {
+        this(context, null);
+    }
+
+    public SectionIndexBar(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public SectionIndexBar(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        init(context, attrs);
+    }
+
+    private void init(Context context, AttributeSet attrs) {
+        float defaultTextSize = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, DEFAULT_TEXT_SIZE_SP, getResources().getDisplayMetrics());
+
+        TypedArray ta = context.obtainStyledAttributes(attrs, R.styleable.SectionIndexBar);
+        float textSize = ta.getDimension(R.styleable.SectionIndexBar_sectionTextSize, defaultTextSize);
+        mTextColor = ta.getColor(R.styleable.SectionIndexBar_sectionTextColor, Color.GRAY);
+        mSelectedTextColor = ta.getColor(R.styleable.SectionIndexBar_sectionSelectedTextColor, Color.BLACK);
+        ta.recycle();
+
+        mTextPaint.setTextAlign(Paint.Align.CENTER);
+        setTextSize(textSize);
+    }
+
+    /**
+     * 绑定列表，section来自decoration注册的第level级吸顶header
+     *
+     * @param recyclerView 列表
+     * @param decoration   列表使用的吸顶decoration
+     * @param level        吸顶header的级别，0为最外层
+     */
+    public void attachToRecyclerView(RecyclerView recyclerView, PinnedHeaderDecoration decoration, int level) {
+        if (recyclerView == null || decoration == null || level < 0) {
+            throw new IllegalArgumentException("请传入正确的参数");
+        }
+        if (mRecyclerView != null) {
+            mRecyclerView.removeOnScrollListener(mOnScrollListener);
+        }
+        mRecyclerView = recyclerView;
+        mDecoration = decoration;
+        mLevel = level;
+        mRecyclerView.addOnScrollListener(mOnScrollListener);
+        updateAdapter();
+        updateCurrentSection();
+        invalidate();
+    }
+
+    public void setSectionLabelProvider(SectionLabelProvider labelProvider) {
+        mLabelProvider = labelProvider;
+        invalidate();
+    }
+
+    public void setOnSectionSelectedListener(OnSectionSelectedListener listener) {
+        mOnSectionSelectedListener = listener;
+    }
+
+    public void setTextSize(float textSize) {
+        mTextPaint.setTextSize(textSize);
+        Paint.FontMetrics fontMetrics = mTextPaint.getFontMetrics();
+        mLineHeight = fontMetrics.bottom - fontMetrics.top;
+        mBaselineOffset = -(fontMetrics.top + fontMetrics.bottom) / 2;
+        invalidate();
+    }
+
+    public void setTextColor(int textColor, int selectedTextColor) {
+        mTextColor = textColor;
+        mSelectedTextColor = selectedTextColor;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        SectionIndex sections = getSections(false);
+        if (sections == null || mLabelProvider == null) {
+            return;
+        }
+        final int sectionCount = sections.size();
+        final int slotCount = getSlotCount(sectionCount);
+        if (slotCount <= 0) {
+            return;
+        }
+
+        final float slotHeight = (float) getContentHeight() / slotCount;
+        final float x = getPaddingLeft() + (getWidth() - getPaddingLeft() - getPaddingRight()) / 2f;
+        final int selectedSection = mTouching ? mTouchingSection : mCurrentSection;
+        final int selectedSlot = selectedSection >= 0 ? (int) ((long) selectedSection * slotCount / sectionCount) : -1;
+        for (int slot = 0; slot < slotCount; slot++) {
+            final int section = (int) ((long) slot * sectionCount / slotCount);
+            CharSequence label = mLabelProvider.getLabel(sections.get(section));
+            if (label == null) {
+                continue;
+            }
+            mTextPaint.setColor(slot == selectedSlot ? mSelectedTextColor : mTextColor);
+            float y = getPaddingTop() + slotHeight * slot + slotHeight / 2 + mBaselineOffset;
+            canvas.drawText(label, 0, label.length(), x, y, mTextPaint);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        switch (event.getAction()) {
+            case MotionEvent.ACTION_DOWN:
+                // 按下时也只用已有的索引，失效的索引由空闲时的重建处理
+                if (getSections(false) == null) {
+                    return false;
+                }
+                mTouching = true;
+                setPressed(true);
+                getParent().requestDisallowInterceptTouchEvent(true);
+                if (mRecyclerView != null) {
+                    mRecyclerView.stopScroll();
+                }
+                mTouchingSection = -1;
+                selectSection(event.getY());
+                return true;
+            case MotionEvent.ACTION_MOVE:
+                selectSection(event.getY());
+                return true;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                mTouching = false;
+                setPressed(false);
+                if (mOnSectionSelectedListener != null && mTouchingSection >= 0) {
+                    SectionIndex sections = getSections(false);
+                    if (sections != null && mTouchingSection < sections.size()) {
+                        mOnSectionSelectedListener.onSectionSelected(sections.get(mTouchingSection), false);
+                    }
+                }
+                mTouchingSection = -1;
+                updateCurrentSection();
+                invalidate();
+                return true;
+            default:
+                return super.onTouchEvent(event);
+        }
+    }
+
+    /**
+     * 按触摸位置选中section并跳转，下标直接对应section起点，不查找adapter
+     */
+    private void selectSection(float y) {
+        SectionIndex sections = getSections(false);
+        if (sections == null || sections.size() == 0 || mRecyclerView.getAdapter() == null) {
+            return;
+        }
+        final int sectionCount = sections.size();
+        final int contentHeight = getContentHeight();
+        float fraction = contentHeight > 0 ? (y - getPaddingTop()) / contentHeight : 0;
+        int section = (int) (Math.max(0f, Math.min(1f, fraction)) * sectionCount);
+        if (section >= sectionCount) {
+            section = sectionCount - 1;
+        }
+        if (section == mTouchingSection) {
+            return;
+        }
+        mTouchingSection = section;
+
+        // 拖动中adapter整体刷新时索引可能还没重建，position不超过item数量
+        final int position = Math.min(sections.get(section), mRecyclerView.getAdapter().getItemCount() - 1);
+        if (position < 0) {
+            return;
+        }
+        RecyclerView.LayoutManager layoutManager = mRecyclerView.getLayoutManager();
+        if (layoutManager instanceof LinearLayoutManager) {
+            ((LinearLayoutManager) layoutManager).scrollToPositionWithOffset(position, 0);
+        } else {
+            mRecyclerView.scrollToPosition(position);
+        }
+        if (mOnSectionSelectedListener != null) {
+            mOnSectionSelectedListener.onSectionSelected(position, true);
+        }
+        invalidate();
+    }
+
+    /**
+     * 第一个可见item所在的section，在有序索引里二分查找
+     */
+    private void updateCurrentSection() {
+        if (mTouching || mRecyclerView == null) {
+            return;
+        }
+        int section = -1;
+        RecyclerView.LayoutManager layoutManager = mRecyclerView.getLayoutManager();
+        SectionIndex sections = getSections(false);
+        if (sections != null && layoutManager != null && layoutManager.getChildCount() > 0) {
+            int firstPosition = PinnedHeaderDecoration.findFirstAdapterPosition(layoutManager);
+            if (firstPosition >= 0) {
+                section = sections.floorIndex(firstPosition);
+            }
+        }
+        if (section != mCurrentSection) {
+            mCurrentSection = section;
+            invalidate();
+        }
+    }
+
+    /**
+     * @param rebuild 索引失效时是否重建，只在主线程空闲时重建，绘制和触摸中不重建
+     */
+    private SectionIndex getSections(boolean rebuild) {
+        if (mRecyclerView == null || mDecoration == null) {
+            return null;
+        }
+        return mDecoration.getSectionIndex(mRecyclerView, mLevel, rebuild);
+    }
+
+    /**
+     * 列表更换adapter时重新注册监听，并安排一次索引重建
+     */
+    private void updateAdapter() {
+        RecyclerView.Adapter adapter = mRecyclerView != null ? mRecyclerView.getAdapter() : null;
+        if (adapter == mAdapter) {
+            return;
+        }
+        if (mAdapter != null) {
+            mAdapter.unregisterAdapterDataObserver(mAdapterDataObserver);
+        }
+        mAdapter = adapter;
+        if (mAdapter != null) {
+            mAdapter.registerAdapterDataObserver(mAdapterDataObserver);
+        }
+        scheduleRebuild();
+    }
+
+    /**
+     * 在主线程空闲时重建失效的索引，索引有效时只是刷新显示
+     */
+    private void scheduleRebuild() {
+        if (!mRebuildScheduled) {
+            mRebuildScheduled = true;
+            Looper.myQueue().addIdleHandler(mRebuildIdleHandler);
+        }
+    }
+
+    private int getSlotCount(int sectionCount) {
+        if (mLineHeight <= 0) {
+            return 0;
+        }
+        return Math.min(sectionCount, (int) (getContentHeight() / mLineHeight));
+    }
+
+    private int getContentHeight() {
+        return getHeight() - getPaddingTop() - getPaddingBottom();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mRecyclerView != null) {
+            mRecyclerView.removeOnScrollListener(mOnScrollListener);
+        }
+        if (mAdapter != null) {
+            mAdapter.unregisterAdapterDataObserver(mAdapterDataObserver);
+            mAdapter = null;
+        }
+        if (mRebuildScheduled) {
+            Looper.myQueue().removeIdleHandler(mRebuildIdleHandler);
+            mRebuildScheduled = false;
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mRecyclerView != null) {
+            mRecyclerView.removeOnScrollListener(mOnScrollListener);
+            mRecyclerView.addOnScrollListener(mOnScrollListener);
+            updateAdapter();
+        }
+    }
+
+    /**
+     * section显示的文字，比如首字母或者日期
+     */
+    public interface SectionLabelProvider {
+        CharSequence getLabel(int adapterPosition);
+    }
+
+    public interface OnSectionSelectedListener {
+        /**
+         * @param adapterPosition 选中section的起点position
+         * @param touching        是否还在拖动，松手时回调false
+         */
+        void onSectionSelected(int adapterPosition, boolean touching);
+    }
+}
@@ -0,0 +1,284 @@
+package com.setsailz.backups;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.setsailz.backups.widgets.CompositeItemDecoration;
+import com.setsailz.backups.widgets.PinnedHeaderDecoration;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 模拟滚动，检查decoration每帧的onDraw、onDrawOver和getItemOffsets没有任何分配。
+ * 先完整滚动一遍预热（创建吸顶header、填充各种缓存），之后每一帧单独统计当前线程分配的字节数
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public class DecorationAllocationTest {
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 800;
+    private static final int ITEM_HEIGHT = 40;
+    private static final int ITEM_COUNT = 200;
+    private static final int SECTION_SIZE = 10;
+    private static final int TYPE_HEADER = 1;
+    private static final int TYPE_ITEM = 2;
+    private static final int SCROLL_STEP = 7;
+
+    private Context mContext;
+    private com.sun.management.ThreadMXBean mThreadMXBean;
+    private long mMeasureOverhead;
+
+    private final NoOpCanvas mCanvas = new NoOpCanvas(WIDTH, HEIGHT);
+    private final Rect mOutRect = new Rect();
+    private RecyclerView.State mState;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        mThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        assumeTrue(mThreadMXBean.isThreadAllocatedMemorySupported());
+        mThreadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        // 统计本身的分配，取多次中最小的
+        mMeasureOverhead = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            long start = allocatedBytes();
+            mMeasureOverhead = Math.min(mMeasureOverhead, allocatedBytes() - start);
+        }
+    }
+
+    @Test
+    public void dividerLinearFrames_doNotAllocate() {
+        assertNoFrameAllocation(newDivider().build(), new LinearLayoutManager(mContext));
+    }
+
+    @Test
+    public void dividerBatchDashedFrames_doNotAllocate() {
+        assertNoFrameAllocation(newDivider().enableBatchDraw(true).isDashLine(true).build(),
+                new LinearLayoutManager(mContext));
+    }
+
+    @Test
+    public void dividerStyledFrames_doNotAllocate() {
+        DefaultRecyclerViewDivider divider = newDivider()
+                .addViewTypeRule(TYPE_HEADER, new DefaultRecyclerViewDivider.DividerStyle().setSize(4))
+                .addPositionRule(new DefaultRecyclerViewDivider.PositionPredicate() {
+                    @Override
+                    public boolean apply(RecyclerView parent, int adapterPosition) {
+                        return adapterPosition % SECTION_SIZE == SECTION_SIZE - 1;
+                    }
+                }, null)
+                .build();
+        assertNoFrameAllocation(divider, new LinearLayoutManager(mContext));
+    }
+
+    /**
+     * 不预热整个列表，只画第一屏，之后逐帧滚动到从没解析过样式的position
+     */
+    @Test
+    public void dividerStyledUnseenPositions_doNotAllocate() {
+        DefaultRecyclerViewDivider divider = newDivider()
+                .addViewTypeRule(TYPE_HEADER, new DefaultRecyclerViewDivider.DividerStyle().setSize(4))
+                .addPositionRule(new DefaultRecyclerViewDivider.PositionPredicate() {
+                    @Override
+                    public boolean apply(RecyclerView parent, int adapterPosition) {
+                        return adapterPosition % SECTION_SIZE == SECTION_SIZE - 1;
+                    }
+                }, null)
+                .build();
+        RecyclerView recyclerView = newRecyclerView(divider, new LinearLayoutManager(mContext));
+        drawFrame(recyclerView, divider);
+        recyclerView.scrollBy(0, SCROLL_STEP);
+        drawFrame(recyclerView, divider);
+
+        final int frames = (ITEM_COUNT * ITEM_HEIGHT - HEIGHT) / SCROLL_STEP - 1;
+        for (int i = 0; i < frames; i++) {
+            recyclerView.scrollBy(0, SCROLL_STEP);
+            assertFrameDoesNotAllocate(recyclerView, divider, i);
+        }
+    }
+
+    @Test
+    public void dividerGridFrames_doNotAllocate() {
+        assertNoFrameAllocation(newDivider().build(), new GridLayoutManager(mContext, 3));
+    }
+
+    @Test
+    public void pinnedHeaderFrames_doNotAllocate() {
+        PinnedHeaderDecoration decoration = newPinnedHeaderDecoration();
+        RecyclerView recyclerView = newRecyclerView(decoration, new LinearLayoutManager(mContext));
+        scrollThrough(recyclerView, decoration, SCROLL_STEP, false);
+
+        // 在一个section内来回滚动，吸顶header不切换，快照不重新录制
+        ((LinearLayoutManager) recyclerView.getLayoutManager()).scrollToPositionWithOffset(5 * SECTION_SIZE, 0);
+        layout(recyclerView);
+        drawFrame(recyclerView, decoration);
+        final int steps = (SECTION_SIZE - 1) * ITEM_HEIGHT / SCROLL_STEP;
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < steps; i++) {
+                recyclerView.scrollBy(0, SCROLL_STEP);
+                assertFrameDoesNotAllocate(recyclerView, decoration, i);
+            }
+            for (int i = 0; i < steps; i++) {
+                recyclerView.scrollBy(0, -SCROLL_STEP);
+                assertFrameDoesNotAllocate(recyclerView, decoration, i);
+            }
+        }
+    }
+
+    @Test
+    public void compositeFrames_doNotAllocate() {
+        CompositeItemDecoration decoration = new CompositeItemDecoration()
+                .add(newDivider().enableBatchDraw(true).build())
+                .add(newPinnedHeaderDecoration());
+        RecyclerView recyclerView = newRecyclerView(decoration, new LinearLayoutManager(mContext));
+        scrollThrough(recyclerView, decoration, SCROLL_STEP, false);
+
+        ((LinearLayoutManager) recyclerView.getLayoutManager()).scrollToPositionWithOffset(3 * SECTION_SIZE, 0);
+        layout(recyclerView);
+        drawFrame(recyclerView, decoration);
+        for (int i = 0; i < (SECTION_SIZE - 1) * ITEM_HEIGHT / SCROLL_STEP; i++) {
+            recyclerView.scrollBy(0, SCROLL_STEP);
+            assertFrameDoesNotAllocate(recyclerView, decoration, i);
+        }
+    }
+
+    /**
+     * 预热一遍之后，再完整滚动一遍，逐帧检查
+     */
+    private void assertNoFrameAllocation(RecyclerView.ItemDecoration decoration, RecyclerView.LayoutManager layoutManager) {
+        RecyclerView recyclerView = newRecyclerView(decoration, layoutManager);
+        scrollThrough(recyclerView, decoration, SCROLL_STEP, false);
+        scrollThrough(recyclerView, decoration, SCROLL_STEP, true);
+    }
+
+    /**
+     * 从头滚动到尾再滚回来，每次滚动之后画一帧
+     *
+     * @param check 是否检查分配，false为预热
+     */
+    private void scrollThrough(RecyclerView recyclerView, RecyclerView.ItemDecoration decoration, int step, boolean check) {
+        recyclerView.scrollToPosition(0);
+        layout(recyclerView);
+        final int frames = (ITEM_COUNT * ITEM_HEIGHT - HEIGHT) / step;
+        for (int direction = 1; direction >= -1; direction -= 2) {
+            for (int i = 0; i < frames; i++) {
+                recyclerView.scrollBy(0, direction * step);
+                if (check) {
+                    assertFrameDoesNotAllocate(recyclerView, decoration, i);
+                } else {
+                    drawFrame(recyclerView, decoration);
+                }
+            }
+        }
+    }
+
+    private void assertFrameDoesNotAllocate(RecyclerView recyclerView, RecyclerView.ItemDecoration decoration, int frame) {
+        final long start = allocatedBytes();
+        drawFrame(recyclerView, decoration);
+        final long allocated = allocatedBytes() - start - mMeasureOverhead;
+        assertEquals("frame " + frame + " allocated " + allocated + " bytes", 0, Math.max(0, allocated));
+    }
+
+    /**
+     * 和RecyclerView绘制一帧时的调用顺序一致
+     */
+    private void drawFrame(RecyclerView recyclerView, RecyclerView.ItemDecoration decoration) {
+        for (int i = 0; i < recyclerView.getChildCount(); i++) {
+            decoration.getItemOffsets(mOutRect, recyclerView.getChildAt(i), recyclerView, mState);
+        }
+        decoration.onDraw(mCanvas, recyclerView, mState);
+        decoration.onDrawOver(mCanvas, recyclerView, mState);
+    }
+
+    private long allocatedBytes() {
+        return mThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private DefaultRecyclerViewDivider newDivider() {
+        return new DefaultRecyclerViewDivider(mContext)
+                .setSize(2)
+                .setColor(R.color.colorPrimary);
+    }
+
+    private PinnedHeaderDecoration newPinnedHeaderDecoration() {
+        PinnedHeaderDecoration decoration = new PinnedHeaderDecoration();
+        decoration.registerTypePinnedHeader(TYPE_HEADER, new PinnedHeaderDecoration.PinnedHeaderCreator() {
+            @Override
+            public boolean create(RecyclerView parent, int adapterPosition) {
+                return true;
+            }
+        });
+        return decoration;
+    }
+
+    private RecyclerView newRecyclerView(RecyclerView.ItemDecoration decoration, RecyclerView.LayoutManager layoutManager) {
+        RecyclerView recyclerView = new RecyclerView(mContext);
+        recyclerView.setLayoutManager(layoutManager);
+        recyclerView.setAdapter(new SectionAdapter());
+        recyclerView.addItemDecoration(decoration);
+        // 布局时拿到RecyclerView自己的State，供手动画帧使用
+        recyclerView.addItemDecoration(new RecyclerView.ItemDecoration() {
+            @Override
+            public void getItemOffsets(Rect outRect, View view, RecyclerView parent, RecyclerView.State state) {
+                mState = state;
+            }
+        });
+        layout(recyclerView);
+        return recyclerView;
+    }
+
+    private static void layout(RecyclerView recyclerView) {
+        recyclerView.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        recyclerView.layout(0, 0, WIDTH, HEIGHT);
+    }
+
+    /**
+     * 每SECTION_SIZE个item一个header，绑定时不做任何事，滚动中的分配全部来自decoration
+     */
+    private static class SectionAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+        @Override
+        public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            View view = new View(parent.getContext());
+            view.setLayoutParams(new RecyclerView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ITEM_HEIGHT));
+            if (viewType == TYPE_HEADER) {
+                view.setBackgroundColor(Color.WHITE);
+            }
+            return new RecyclerView.ViewHolder(view) {
+            };
+        }
+
+        @Override
+        public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) {
+        }
+
+        @Override
+        public int getItemViewType(int position) {
+            return position % SECTION_SIZE == 0 ? TYPE_HEADER : TYPE_ITEM;
+        }
+
+        @Override
+        public int getItemCount() {
+            return ITEM_COUNT;
+        }
+    }
+}
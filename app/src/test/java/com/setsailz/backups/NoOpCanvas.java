@@ -0,0 +1,125 @@
+package com.setsailz.backups;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Picture;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Region;
+
+/**
+ * 什么都不画的Canvas，绘制调用不经过Robolectric的shadow，分配统计里只剩decoration自己的分配
+ */
+class NoOpCanvas extends Canvas {
+    private final int mWidth;
+    private final int mHeight;
+    private int mSaveCount = 1;
+
+    NoOpCanvas(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    @Override
+    public boolean isHardwareAccelerated() {
+        return false;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public boolean getClipBounds(Rect bounds) {
+        bounds.set(0, 0, mWidth, mHeight);
+        return true;
+    }
+
+    @Override
+    public int save() {
+        return mSaveCount++;
+    }
+
+    @Override
+    public void restore() {
+        mSaveCount--;
+    }
+
+    @Override
+    public void restoreToCount(int saveCount) {
+        mSaveCount = saveCount;
+    }
+
+    @Override
+    public int getSaveCount() {
+        return mSaveCount;
+    }
+
+    @Override
+    public void translate(float dx, float dy) {
+    }
+
+    @Override
+    public boolean clipRect(Rect rect) {
+        return true;
+    }
+
+    @Override
+    public boolean clipRect(RectF rect) {
+        return true;
+    }
+
+    @Override
+    public boolean clipRect(int left, int top, int right, int bottom) {
+        return true;
+    }
+
+    @Override
+    public boolean clipRect(float left, float top, float right, float bottom) {
+        return true;
+    }
+
+    @Override
+    public boolean clipRect(Rect rect, Region.Op op) {
+        return true;
+    }
+
+    @Override
+    public void drawRect(float left, float top, float right, float bottom, Paint paint) {
+    }
+
+    @Override
+    public void drawRect(Rect r, Paint paint) {
+    }
+
+    @Override
+    public void drawRect(RectF rect, Paint paint) {
+    }
+
+    @Override
+    public void drawLines(float[] pts, int offset, int count, Paint paint) {
+    }
+
+    @Override
+    public void drawLines(float[] pts, Paint paint) {
+    }
+
+    @Override
+    public void drawPicture(Picture picture) {
+    }
+
+    @Override
+    public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+    }
+
+    @Override
+    public void drawText(CharSequence text, int start, int end, float x, float y, Paint paint) {
+    }
+}
@@ -0,0 +1,109 @@
+package com.setsailz.backups;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 样式缓存的局部失效、原地平移，以及写入没见过的position时不分配内存
+ */
+public class PositionStyleCacheTest {
+    private static final int ITEM_COUNT = 1000;
+    private static final String STYLE = "style";
+
+    @Test
+    public void clearRange_keepsOtherPositions() {
+        PositionStyleCache<String> cache = filled(10);
+        cache.clear(3, 5);
+        assertEquals("2", cache.get(2));
+        assertNull(cache.get(3));
+        assertNull(cache.get(4));
+        assertEquals("5", cache.get(5));
+    }
+
+    @Test
+    public void insert_shiftsTailInPlace() {
+        PositionStyleCache<String> cache = filled(10);
+        cache.insert(4, 2, 12);
+        assertEquals("3", cache.get(3));
+        assertNull(cache.get(4));
+        assertNull(cache.get(5));
+        assertEquals("4", cache.get(6));
+        assertEquals("9", cache.get(11));
+    }
+
+    @Test
+    public void remove_shiftsTailInPlace() {
+        PositionStyleCache<String> cache = filled(10);
+        final int capacity = cache.capacity();
+        cache.remove(2, 3);
+        assertEquals("1", cache.get(1));
+        assertEquals("5", cache.get(2));
+        assertEquals("9", cache.get(6));
+        assertNull(cache.get(7));
+        assertNull(cache.get(capacity - 1));
+    }
+
+    @Test
+    public void removePastEnd_clearsTail() {
+        PositionStyleCache<String> cache = filled(10);
+        cache.remove(8, 5);
+        assertEquals("7", cache.get(7));
+        assertNull(cache.get(8));
+        assertNull(cache.get(9));
+    }
+
+    @Test
+    public void unseenPositions_doNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        final long threadId = Thread.currentThread().getId();
+
+        // 先在另一个缓存上完整跑一遍，类加载和解释执行的分配不算进去
+        scrollThrough(new PositionStyleCache<String>());
+        long overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            final long start = threadMXBean.getThreadAllocatedBytes(threadId);
+            overhead = Math.min(overhead, threadMXBean.getThreadAllocatedBytes(threadId) - start);
+        }
+
+        PositionStyleCache<String> cache = new PositionStyleCache<>();
+        cache.ensureCapacity(ITEM_COUNT);
+        final long start = threadMXBean.getThreadAllocatedBytes(threadId);
+        scrollThrough(cache);
+        final long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - start - overhead;
+        assertEquals("allocated " + allocated + " bytes", 0, Math.max(0, allocated));
+    }
+
+    /**
+     * 和绘制时一样逐个position查表，没有结果才写入，中间夹着一次局部移除和插入
+     */
+    private static void scrollThrough(PositionStyleCache<String> cache) {
+        cache.ensureCapacity(ITEM_COUNT);
+        for (int position = 0; position < ITEM_COUNT; position++) {
+            if (cache.get(position) == null) {
+                cache.put(position, STYLE);
+            }
+            if (position == ITEM_COUNT / 2) {
+                cache.remove(10, 5);
+                cache.insert(10, 5, ITEM_COUNT);
+            }
+        }
+    }
+
+    private static PositionStyleCache<String> filled(int count) {
+        PositionStyleCache<String> cache = new PositionStyleCache<>();
+        cache.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            cache.put(i, String.valueOf(i));
+        }
+        return cache;
+    }
+}
@@ -0,0 +1,165 @@
+package com.setsailz.backups.suggest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 在JVM上生成索引文件，和直接在内存里排序过滤的结果对比
+ */
+public class PrefixIndexTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void lookup_returnsTopKByWeightThenText() throws IOException {
+        PrefixIndex index = build(new String[]{"/sdcard/a", "/sdcard/b", "/sdcard/c", "/system", "data"},
+                new int[]{5, 9, 5, 100, 7});
+
+        assertEquals(Arrays.asList("/sdcard/b", "/sdcard/a"), texts(index.lookup("/sd", 2)));
+        assertEquals(Arrays.asList("/system", "/sdcard/b", "/sdcard/a", "/sdcard/c"), texts(index.lookup("/", 10)));
+        assertEquals(Collections.singletonList("data"), texts(index.lookup("data", 10)));
+        assertTrue(index.lookup("e", 10).isEmpty());
+        assertTrue(index.lookup("/sdcard/ab", 10).isEmpty());
+        assertTrue(index.lookup("", 0).isEmpty());
+    }
+
+    @Test
+    public void weightOf_findsExactMatchOnly() throws IOException {
+        PrefixIndex index = build(new String[]{"ab", "abc", "b"}, new int[]{1, 2, 3});
+
+        assertEquals(1, index.weightOf("ab"));
+        assertEquals(2, index.weightOf("abc"));
+        assertEquals(3, index.weightOf("b"));
+        assertEquals(0, index.weightOf("a"));
+        assertEquals(0, index.weightOf("abcd"));
+        assertEquals(0, index.weightOf("c"));
+    }
+
+    @Test
+    public void lookup_matchesBruteForceAcrossBlocks() throws IOException {
+        final Random random = new Random(42);
+        final TreeMap<String, Integer> corpus = new TreeMap<>(SuggestionIndex.CODE_POINT_ORDER);
+        final String alphabet = "ab/中😀";
+        while (corpus.size() < 3000) {
+            corpus.put(randomText(random, alphabet, 1 + random.nextInt(8)), random.nextInt(50));
+        }
+        PrefixIndex.Writer writer = new PrefixIndex.Writer(mFolder.newFile("random.idx"));
+        for (String text : corpus.keySet()) {
+            writer.add(text, corpus.get(text));
+        }
+        PrefixIndex index = writer.finish();
+        assertEquals(corpus.size(), index.size());
+
+        for (int i = 0; i < 300; i++) {
+            final String prefix = randomText(random, alphabet, random.nextInt(4));
+            final int k = 1 + random.nextInt(20);
+            assertEquals("prefix " + prefix, bruteForce(corpus, prefix, k), texts(index.lookup(prefix, k)));
+        }
+    }
+
+    @Test
+    public void cursor_iteratesInOrder() throws IOException {
+        final String[] texts = new String[40];
+        final int[] weights = new int[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = String.format("item%03d", i);
+            weights[i] = i;
+        }
+        PrefixIndex.Cursor cursor = build(texts, weights).cursor();
+        for (int i = 0; i < texts.length; i++) {
+            assertTrue(cursor.next());
+            assertEquals(texts[i], new String(cursor.key(), 0, cursor.keyLength(), PrefixIndex.UTF_8));
+            assertEquals(i, cursor.weight());
+        }
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void writer_rejectsUnsortedInput() throws IOException {
+        PrefixIndex.Writer writer = new PrefixIndex.Writer(mFolder.newFile("unsorted.idx"));
+        writer.add("b", 1);
+        try {
+            writer.add("a", 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            writer.abort();
+        }
+    }
+
+    @Test
+    public void open_rejectsCorruptFile() throws IOException {
+        File file = mFolder.newFile("corrupt.idx");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(64);
+        raf.close();
+        try {
+            PrefixIndex.open(file);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    private PrefixIndex build(String[] texts, int[] weights) throws IOException {
+        PrefixIndex.Writer writer = new PrefixIndex.Writer(mFolder.newFile());
+        for (int i = 0; i < texts.length; i++) {
+            writer.add(texts[i], weights[i]);
+        }
+        return writer.finish();
+    }
+
+    private static List<String> bruteForce(final TreeMap<String, Integer> corpus, String prefix, int k) {
+        final List<String> matches = new ArrayList<>();
+        for (String text : corpus.keySet()) {
+            if (text.startsWith(prefix)) {
+                matches.add(text);
+            }
+        }
+        // 稳定排序，权重相同时保持原来的码点顺序
+        Collections.sort(matches, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return corpus.get(b) - corpus.get(a);
+            }
+        });
+        return matches.subList(0, Math.min(k, matches.size()));
+    }
+
+    private static String randomText(Random random, String alphabet, int length) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            // 最后一个字符是代理对，随机到它的高位时整个代理对一起加上
+            final int index = random.nextInt(alphabet.length() - 1);
+            if (Character.isHighSurrogate(alphabet.charAt(index))) {
+                builder.append(alphabet, index, index + 2);
+            } else {
+                builder.append(alphabet.charAt(index));
+            }
+        }
+        return builder.toString();
+    }
+
+    private static List<String> texts(List<PrefixIndex.Entry> entries) {
+        final List<String> texts = new ArrayList<>();
+        for (PrefixIndex.Entry entry : entries) {
+            texts.add(entry.text);
+        }
+        return texts;
+    }
+}
@@ -0,0 +1,187 @@
+package com.setsailz.backups.suggest;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 追加日志、合并和重新打开后的查询结果，以及大索引上top-K查询的耗时
+ */
+public class SuggestionIndexTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private final List<Runnable> mMergeTasks = new ArrayList<>();
+
+    /**
+     * 日志写入和合并任务先存起来，由测试决定什么时候执行
+     */
+    private final Executor mMergeExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mMergeTasks.add(command);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = mFolder.newFolder();
+    }
+
+    @Test
+    public void lookup_combinesBaseAndLog() throws IOException {
+        SuggestionIndex index = open();
+        index.add("/sdcard/DCIM", 3);
+        index.add("/sdcard/Download", 5);
+        index.mergeNow();
+
+        index.add("/sdcard/DCIM", 4);
+        index.add("/sdcard/Music", 1);
+        assertEquals(Arrays.asList("/sdcard/DCIM", "/sdcard/Download", "/sdcard/Music"), index.lookup("/sdcard/", 10));
+        assertEquals(Arrays.asList("/sdcard/DCIM", "/sdcard/Download"), index.lookup("/sdcard/D", 10));
+        assertEquals(Arrays.asList("/sdcard/DCIM"), index.lookup("/", 1));
+        index.close();
+    }
+
+    @Test
+    public void reopen_replaysOnlyUnmergedRecords() throws IOException {
+        SuggestionIndex index = open();
+        index.add("alpha", 2);
+        index.add("beta", 1);
+        index.mergeNow();
+        index.add("beta", 2);
+        index.close();
+
+        index = open();
+        assertEquals(Arrays.asList("beta", "alpha"), index.lookup("", 10));
+        index.add("alpha", 2);
+        assertEquals(Arrays.asList("alpha", "beta"), index.lookup("", 10));
+        index.close();
+    }
+
+    @Test
+    public void reopen_dropsTornRecord() throws IOException {
+        SuggestionIndex index = open();
+        index.add("alpha", 1);
+        index.add("beta", 2);
+        index.close();
+
+        File log = new File(mDirectory, "test.log");
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        raf.setLength(raf.length() - 2);
+        raf.close();
+
+        index = open();
+        assertEquals(Arrays.asList("alpha"), index.lookup("", 10));
+        index.add("gamma", 3);
+        index.close();
+
+        index = open();
+        assertEquals(Arrays.asList("gamma", "alpha"), index.lookup("", 10));
+        index.close();
+    }
+
+    @Test
+    public void add_writesLogOnExecutor() throws IOException {
+        SuggestionIndex index = open();
+        File log = new File(mDirectory, "test.log");
+        index.add("alpha", 1);
+        index.add("beta", 2);
+        // 调用线程不写文件，两次追加只安排一次写入
+        assertEquals(0, log.length());
+        assertEquals(1, mMergeTasks.size());
+        assertEquals(Arrays.asList("beta", "alpha"), index.lookup("", 10));
+
+        runTasks();
+        assertTrue(log.length() > 0);
+        index.close();
+
+        index = open();
+        assertEquals(Arrays.asList("beta", "alpha"), index.lookup("", 10));
+        index.close();
+    }
+
+    @Test
+    public void backgroundMerge_keepsRecordsAddedDuringMerge() throws IOException {
+        SuggestionIndex index = open().setMergeThreshold(3);
+        index.add("a1", 1);
+        index.add("a2", 1);
+        index.add("a3", 1);
+        // 日志写入和合并各一个
+        assertEquals(2, mMergeTasks.size());
+
+        // 合并开始前追加的记录也会被冻结合并
+        index.add("a1", 5);
+        runTasks();
+        index.add("a2", 10);
+        assertEquals(Arrays.asList("a2", "a1", "a3"), index.lookup("a", 10));
+        index.close();
+
+        index = open();
+        assertEquals(Arrays.asList("a2", "a1", "a3"), index.lookup("a", 10));
+        index.close();
+    }
+
+    @Test
+    public void lookup_tieBreaksByCodePointOrder() throws IOException {
+        SuggestionIndex index = open();
+        index.add("x😀", 1);
+        index.add("x～", 1);
+        index.add("xa", 1);
+        assertEquals(Arrays.asList("xa", "x～", "x😀"), index.lookup("x", 10));
+        index.mergeNow();
+        assertEquals(Arrays.asList("xa", "x～", "x😀"), index.lookup("x", 10));
+        index.close();
+    }
+
+    /**
+     * 10万个词里按常见的短前缀取前10个，平均每次查询不超过1毫秒
+     */
+    @Test
+    public void lookup_topKUnderOneMillisecond() throws IOException {
+        SuggestionIndex index = open();
+        for (int i = 0; i < 100000; i++) {
+            index.add("/storage/emulated/0/" + (char) ('a' + i % 26) + "/" + i, i % 97 + 1);
+        }
+        // 达到阈值时已经安排了后台合并，执行它把所有的词合并进基础索引
+        runTasks();
+        index.add("/storage/emulated/0/new", 50);
+
+        final String[] prefixes = {"/", "/storage/", "/storage/emulated/0/b", "/storage/emulated/0/z/99"};
+        // 预热，排除类加载和JIT
+        for (int i = 0; i < 2000; i++) {
+            index.lookup(prefixes[i % prefixes.length], 10);
+        }
+        final int rounds = 2000;
+        final long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            assertTrue(index.lookup(prefixes[i % prefixes.length], 10).size() <= 10);
+        }
+        final long averageNanos = (System.nanoTime() - start) / rounds;
+        assertTrue("average lookup " + averageNanos + "ns", averageNanos < 1000000);
+        index.close();
+    }
+
+    private void runTasks() {
+        while (!mMergeTasks.isEmpty()) {
+            mMergeTasks.remove(0).run();
+        }
+    }
+
+    private SuggestionIndex open() throws IOException {
+        return SuggestionIndex.open(mDirectory, "test", mMergeExecutor);
+    }
+}